@@ -0,0 +1,96 @@
+/**
+ * Reader of persistent connections
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Reads request frames from a persistent connection until the peer closes
+ * it and passes each to a MessageHandler with a FramedResponder.
+ */
+class FramedConnectionReader implements Runnable {
+	private final Socket socket;
+	private final KVMessage first;
+	private final MessageHandler handler;
+
+	/**
+	 * @param first the request already read from the socket
+	 */
+	FramedConnectionReader(Socket socket, KVMessage first, MessageHandler handler) {
+		this.socket = socket;
+		this.first = first;
+		this.handler = handler;
+	}
+
+	/**
+	 * Serves socket on a thread of its own if first came in on a
+	 * persistent connection.
+	 * @return whether the connection was taken over
+	 */
+	static boolean serveIfPersistent(Socket socket, KVMessage first, MessageHandler handler) {
+		if (first.getRequestId() == 0) {
+			return false;
+		}
+		Thread reader = new Thread(new FramedConnectionReader(socket, first, handler),
+				"connection " + socket.getRemoteSocketAddress());
+		reader.setDaemon(true);
+		reader.start();
+		return true;
+	}
+
+	public void run() {
+		try {
+			// Responses are small frames written one at a time; don't let Nagle hold them back
+			socket.setTcpNoDelay(true);
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			KVMessage request = first;
+			while (true) {
+				handler.handleMessage(request, new FramedResponder(out, request.getRequestId(), socket.getInetAddress()));
+				request = KVMessage.receive(in);
+				if (request.getRequestId() == 0) {
+					break;		// a persistent connection carries only tagged frames
+				}
+			}
+		} catch (KVException e) {
+			// peer closed the connection, or sent something unparseable
+		} catch (IOException e) {
+			// connection reset
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
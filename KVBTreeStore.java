@@ -0,0 +1,741 @@
+/**
+ * Memory-mapped B+tree storage engine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * KeyValue store kept as a B+tree of fixed-size pages in a memory-mapped
+ * file. Keys are ordered by their encoded bytes. Values larger than
+ * INLINE_LIMIT live in chains of overflow pages.
+ * 
+ * Pages are never modified in place: an update writes new copies of the leaf
+ * and of every branch on the path to the root, then commits by writing the
+ * new root into the older of the two meta pages. With syncWrites on (the
+ * default) the data pages are forced before the meta page and the meta page
+ * before the commit returns, so an OS crash leaves either the old or the new
+ * tree, never a mix. Pages replaced by a commit go back on the free list
+ * only once a forced commit no longer needs them. With syncWrites off the
+ * kernel may write the meta page before the pages it points to, so only a
+ * crash of the process, not of the OS, is survived.
+ * 
+ * Decoded pages are kept in a bounded page cache; since a written page never
+ * changes, a cached copy stays valid until the page is freed. Everything
+ * else is left to the operating system's page cache through the mapping.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class KVBTreeStore<K extends Serializable, V extends Serializable> implements KVPersistentStore<K, V> {
+	public static final int PAGE_SIZE = 4096;
+	public static final int DEFAULT_PAGE_CACHE_SIZE = 8192;
+
+	private static final int INLINE_LIMIT = 1024;
+	private static final int MAX_KEY_SIZE = 1024;
+	private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+	private static final int PAGES_PER_CHUNK = (int) (CHUNK_SIZE / PAGE_SIZE);
+	private static final long MAGIC = 0x4b5642547265654cL;
+
+	private static final byte LEAF = 1;
+	private static final byte BRANCH = 2;
+	private static final byte OVERFLOW = 3;
+	private static final int NODE_HEADER = 3;
+	private static final int OVERFLOW_HEADER = 13;
+	private static final int OVERFLOW_CAPACITY = PAGE_SIZE - OVERFLOW_HEADER;
+	private static final long FIRST_DATA_PAGE = 2;
+
+	/**
+	 * Reference to a value stored in overflow pages
+	 */
+	private static class Overflow {
+		final long firstPage;
+		final int length;
+
+		Overflow(long firstPage, int length) {
+			this.firstPage = firstPage;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Decoded page. Leaves hold values (byte[] or Overflow), branches hold
+	 * keys.size() + 1 children; child i+1 holds the keys >= keys[i].
+	 */
+	private static class Node {
+		final boolean leaf;
+		final List<byte[]> keys;
+		final List<Object> values;
+		final List<Long> children;
+
+		Node(boolean leaf, int capacity) {
+			this.leaf = leaf;
+			this.keys = new ArrayList<byte[]>(capacity);
+			this.values = leaf ? new ArrayList<Object>(capacity) : null;
+			this.children = leaf ? null : new ArrayList<Long>(capacity + 1);
+		}
+
+		Node copy() {
+			Node node = new Node(leaf, keys.size() + 1);
+			node.keys.addAll(keys);
+			if (leaf) {
+				node.values.addAll(values);
+			} else {
+				node.children.addAll(children);
+			}
+			return node;
+		}
+
+		int entrySize(int i) {
+			if (leaf) {
+				Object value = values.get(i);
+				return 2 + keys.get(i).length + 1 + ((value instanceof Overflow) ? 12 : 4 + ((byte[]) value).length);
+			}
+			return 2 + keys.get(i).length + 8;
+		}
+
+		int encodedSize() {
+			int size = NODE_HEADER + (leaf ? 0 : 8);
+			for (int i = 0; i < keys.size(); i++) {
+				size += entrySize(i);
+			}
+			return size;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+	private final Map<Long, Node> pageCache;
+	private volatile boolean syncWrites = true;
+
+	private long rootPage;
+	private long pageCount;
+	private long txnId;
+	private final Deque<Long> freePages = new ArrayDeque<Long>();
+	private final List<Long> pendingFree = new ArrayList<Long>();
+	// Freed by commits not yet forced; the last tree on disk may still use them
+	private final List<Long> unforcedFree = new ArrayList<Long>();
+	// Unforced commits force anyway once this many pages wait to be reused
+	private static final int MAX_UNFORCED_FREE = 4096;
+
+	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private final Lock read = readWriteLock.readLock();
+	private final Lock write = readWriteLock.writeLock();
+
+	/**
+	 * @param path the page file; created if missing
+	 * @throws KVException if the file cannot be opened or is not a tree file
+	 */
+	public KVBTreeStore(String path) throws KVException {
+		this(path, DEFAULT_PAGE_CACHE_SIZE);
+	}
+
+	/**
+	 * @param path the page file; created if missing
+	 * @param pageCacheSize number of decoded pages kept in memory
+	 * @throws KVException if the file cannot be opened or is not a tree file
+	 */
+	public KVBTreeStore(String path, final int pageCacheSize) throws KVException {
+		file = new File(path);
+		pageCache = new LinkedHashMap<Long, Node>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest) {
+				return size() > pageCacheSize;
+			}
+		};
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			if (channel.size() == 0) {
+				create();
+			} else {
+				open();
+			}
+		} catch (IOException e) {
+			throw ioError();
+		}
+	}
+
+	/**
+	 * Force data and meta pages to disk on every commit; on by default. When
+	 * off, a commit is only as safe as the page cache, so restarts replay the
+	 * TPCLog, and freed pages wait for a forced commit before being reused.
+	 */
+	@Override
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	@Override
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = encodeKey(key);
+		byte[] valueBytes = KVBytes.toBytes(value);
+		write.lock();
+		try {
+			return update(keyBytes, valueBytes);
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			write.unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(K key) throws KVException {
+		byte[] keyBytes = encodeKey(key);
+		read.lock();
+		try {
+			Node node = readNode(rootPage);
+			while (!node.leaf) {
+				node = readNode(node.children.get(childIndex(node, keyBytes)));
+			}
+			int i = search(node.keys, keyBytes);
+			if (i < 0) {
+				return null;
+			}
+			return (V) KVBytes.fromBytes(loadValue(node.values.get(i)));
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public void del(K key) throws KVException {
+		byte[] keyBytes = encodeKey(key);
+		write.lock();
+		try {
+			update(keyBytes, null);
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			write.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws KVException {
+		write.lock();
+		try {
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+			chunks.clear();
+			synchronized (pageCache) {
+				pageCache.clear();
+			}
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Number of pages in the file, including free ones
+	 */
+	public long getPageCount() {
+		read.lock();
+		try {
+			return pageCount;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Copy-on-write insert (value != null) or delete (value == null) of one key
+	 * @return whether the key was present before
+	 */
+	private boolean update(byte[] key, byte[] value) throws IOException {
+		// Walk down, remembering the path
+		List<Node> path = new ArrayList<Node>();
+		List<Long> pathPages = new ArrayList<Long>();
+		List<Integer> pathSlots = new ArrayList<Integer>();
+		long page = rootPage;
+		Node node = readNode(page);
+		while (!node.leaf) {
+			int slot = childIndex(node, key);
+			path.add(node);
+			pathPages.add(page);
+			pathSlots.add(slot);
+			page = node.children.get(slot);
+			node = readNode(page);
+		}
+
+		int i = search(node.keys, key);
+		boolean existed = i >= 0;
+		if (value == null && !existed) {
+			return false;
+		}
+		Node leaf = node.copy();
+		if (existed) {
+			freeValue(leaf.values.get(i));
+		}
+		if (value == null) {
+			leaf.keys.remove(i);
+			leaf.values.remove(i);
+		} else {
+			Object stored = (value.length > INLINE_LIMIT) ? writeOverflow(value) : value;
+			if (existed) {
+				leaf.values.set(i, stored);
+			} else {
+				leaf.keys.add(-(i + 1), key);
+				leaf.values.add(-(i + 1), stored);
+			}
+		}
+		freePage(page);
+
+		// Write the new leaf and rewrite every branch above it
+		Node current = leaf;
+		for (int level = path.size() - 1; level >= -1; level--) {
+			List<byte[]> separators = new ArrayList<byte[]>(1);
+			List<Node> pieces = split(current, separators);
+			List<Long> pages = new ArrayList<Long>(pieces.size());
+			for (Node piece : pieces) {
+				pages.add(pieces.size() == 1 && piece.keys.isEmpty() && level >= 0 && piece.leaf ? -1L : writeNode(piece));
+			}
+
+			if (level < 0) {
+				if (pieces.size() == 1) {
+					long newRoot = pages.get(0);
+					if (newRoot < 0) {
+						newRoot = writeNode(pieces.get(0));
+					}
+					// Collapse a root branch that is down to a single child
+					while (true) {
+						Node root = readNode(newRoot);
+						if (root.leaf || !root.keys.isEmpty()) {
+							break;
+						}
+						freePage(newRoot);
+						newRoot = root.children.get(0);
+					}
+					commit(newRoot);
+				} else {
+					Node root = new Node(false, pieces.size());
+					root.children.add(pages.get(0));
+					for (int p = 1; p < pieces.size(); p++) {
+						root.keys.add(separators.get(p - 1));
+						root.children.add(pages.get(p));
+					}
+					commit(writeNode(root));
+				}
+				break;
+			}
+
+			Node parent = path.get(level).copy();
+			int slot = pathSlots.get(level);
+			if (pages.get(0) < 0) {
+				// Drop an emptied leaf from its parent
+				parent.children.remove(slot);
+				if (!parent.keys.isEmpty()) {
+					parent.keys.remove(slot == 0 ? 0 : slot - 1);
+				}
+			} else {
+				parent.children.set(slot, pages.get(0));
+				for (int p = 1; p < pieces.size(); p++) {
+					parent.keys.add(slot + p - 1, separators.get(p - 1));
+					parent.children.add(slot + p, pages.get(p));
+				}
+			}
+			freePage(pathPages.get(level));
+			if (parent.children.isEmpty()) {
+				parent = new Node(true, 0);
+			}
+			current = parent;
+		}
+		return existed;
+	}
+
+	/**
+	 * Split node into pieces that each fit in a page
+	 * @param separators receives the key that separates each piece from the one before it
+	 */
+	private static List<Node> split(Node node, List<byte[]> separators) {
+		List<Node> pieces = new ArrayList<Node>(2);
+		if (node.encodedSize() <= PAGE_SIZE || node.keys.size() < 2) {
+			pieces.add(node);
+			return pieces;
+		}
+		int half = node.encodedSize() / 2;
+		int size = NODE_HEADER;
+		int mid = 0;
+		while (mid < node.keys.size() - 1 && size + node.entrySize(mid) < half) {
+			size += node.entrySize(mid);
+			mid++;
+		}
+		mid = Math.max(mid, 1);
+
+		Node left = new Node(node.leaf, mid);
+		Node right = new Node(node.leaf, node.keys.size() - mid);
+		byte[] separator;
+		if (node.leaf) {
+			left.keys.addAll(node.keys.subList(0, mid));
+			left.values.addAll(node.values.subList(0, mid));
+			right.keys.addAll(node.keys.subList(mid, node.keys.size()));
+			right.values.addAll(node.values.subList(mid, node.values.size()));
+			separator = right.keys.get(0);
+		} else {
+			// The middle key moves up into the parent
+			left.keys.addAll(node.keys.subList(0, mid));
+			left.children.addAll(node.children.subList(0, mid + 1));
+			right.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
+			right.children.addAll(node.children.subList(mid + 1, node.children.size()));
+			separator = node.keys.get(mid);
+		}
+		pieces.addAll(split(left, separators));
+		separators.add(separator);
+		pieces.addAll(split(right, separators));
+		return pieces;
+	}
+
+	private void commit(long newRoot) throws IOException {
+		boolean force = syncWrites || unforcedFree.size() + pendingFree.size() >= MAX_UNFORCED_FREE;
+		if (force) {
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+		txnId++;
+		rootPage = newRoot;
+		writeMeta(txnId % 2);
+		if (force) {
+			chunks.get(0).force();
+		}
+		synchronized (pageCache) {
+			for (Long page : pendingFree) {
+				pageCache.remove(page);
+			}
+		}
+		unforcedFree.addAll(pendingFree);
+		pendingFree.clear();
+		if (force) {
+			freePages.addAll(unforcedFree);
+			unforcedFree.clear();
+		}
+	}
+
+	private void freePage(long page) {
+		pendingFree.add(page);
+	}
+
+	private void freeValue(Object value) {
+		if (value instanceof Overflow) {
+			long page = ((Overflow) value).firstPage;
+			while (page != 0) {
+				pendingFree.add(page);
+				page = pageBuffer(page).getLong(1);
+			}
+		}
+	}
+
+	private Overflow writeOverflow(byte[] value) throws IOException {
+		int pages = (value.length + OVERFLOW_CAPACITY - 1) / OVERFLOW_CAPACITY;
+		long[] ids = new long[pages];
+		for (int p = 0; p < pages; p++) {
+			ids[p] = allocatePage();
+		}
+		for (int p = 0; p < pages; p++) {
+			int offset = p * OVERFLOW_CAPACITY;
+			int length = Math.min(OVERFLOW_CAPACITY, value.length - offset);
+			ByteBuffer buf = pageBuffer(ids[p]);
+			buf.put(OVERFLOW);
+			buf.putLong((p + 1 < pages) ? ids[p + 1] : 0);
+			buf.putInt(length);
+			buf.put(value, offset, length);
+		}
+		return new Overflow(ids[0], value.length);
+	}
+
+	private byte[] loadValue(Object stored) {
+		if (!(stored instanceof Overflow)) {
+			return (byte[]) stored;
+		}
+		Overflow overflow = (Overflow) stored;
+		byte[] value = new byte[overflow.length];
+		int offset = 0;
+		long page = overflow.firstPage;
+		while (page != 0 && offset < value.length) {
+			ByteBuffer buf = pageBuffer(page);
+			buf.get();
+			long next = buf.getLong();
+			int length = buf.getInt();
+			buf.get(value, offset, length);
+			offset += length;
+			page = next;
+		}
+		return value;
+	}
+
+	private Node readNode(long page) {
+		synchronized (pageCache) {
+			Node cached = pageCache.get(page);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		ByteBuffer buf = pageBuffer(page);
+		byte type = buf.get();
+		int count = buf.getShort() & 0xffff;
+		Node node = new Node(type == LEAF, count);
+		if (!node.leaf) {
+			node.children.add(buf.getLong());
+		}
+		for (int i = 0; i < count; i++) {
+			byte[] key = new byte[buf.getShort() & 0xffff];
+			buf.get(key);
+			node.keys.add(key);
+			if (node.leaf) {
+				if (buf.get() == 0) {
+					byte[] value = new byte[buf.getInt()];
+					buf.get(value);
+					node.values.add(value);
+				} else {
+					long first = buf.getLong();
+					node.values.add(new Overflow(first, buf.getInt()));
+				}
+			} else {
+				node.children.add(buf.getLong());
+			}
+		}
+		synchronized (pageCache) {
+			pageCache.put(page, node);
+		}
+		return node;
+	}
+
+	private long writeNode(Node node) throws IOException {
+		long page = allocatePage();
+		ByteBuffer buf = pageBuffer(page);
+		buf.put(node.leaf ? LEAF : BRANCH);
+		buf.putShort((short) node.keys.size());
+		if (!node.leaf) {
+			buf.putLong(node.children.get(0));
+		}
+		for (int i = 0; i < node.keys.size(); i++) {
+			byte[] key = node.keys.get(i);
+			buf.putShort((short) key.length);
+			buf.put(key);
+			if (node.leaf) {
+				Object value = node.values.get(i);
+				if (value instanceof Overflow) {
+					buf.put((byte) 1);
+					buf.putLong(((Overflow) value).firstPage);
+					buf.putInt(((Overflow) value).length);
+				} else {
+					buf.put((byte) 0);
+					buf.putInt(((byte[]) value).length);
+					buf.put((byte[]) value);
+				}
+			} else {
+				buf.putLong(node.children.get(i + 1));
+			}
+		}
+		synchronized (pageCache) {
+			pageCache.put(page, node);
+		}
+		return page;
+	}
+
+	private long allocatePage() throws IOException {
+		Long free = freePages.poll();
+		if (free != null) {
+			return free;
+		}
+		long page = pageCount++;
+		ensureMapped(pageCount);
+		return page;
+	}
+
+	// A view of one page, positioned at its start
+	private ByteBuffer pageBuffer(long page) {
+		ByteBuffer buf = chunks.get((int) (page / PAGES_PER_CHUNK)).duplicate();
+		int offset = (int) (page % PAGES_PER_CHUNK) * PAGE_SIZE;
+		buf.limit(offset + PAGE_SIZE);
+		buf.position(offset);
+		return buf.slice();
+	}
+
+	private void ensureMapped(long pages) throws IOException {
+		while ((long) chunks.size() * PAGES_PER_CHUNK < pages) {
+			long start = (long) chunks.size() * CHUNK_SIZE;
+			chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, start, CHUNK_SIZE));
+		}
+	}
+
+	private void create() throws IOException {
+		pageCount = FIRST_DATA_PAGE;
+		ensureMapped(pageCount);
+		txnId = 0;
+		commit(writeNode(new Node(true, 0)));
+	}
+
+	/**
+	 * Pick the newest valid meta page, then rebuild the free list by
+	 * marking every page reachable from the root
+	 */
+	private void open() throws IOException, KVException {
+		ensureMapped(Math.max(FIRST_DATA_PAGE, channel.size() / PAGE_SIZE));
+		long bestTxn = -1;
+		for (int m = 0; m < 2; m++) {
+			ByteBuffer meta = pageBuffer(m);
+			long magic = meta.getLong();
+			long txn = meta.getLong();
+			long root = meta.getLong();
+			long count = meta.getLong();
+			int crc = meta.getInt();
+			if (magic == MAGIC && crc == metaChecksum(txn, root, count) && txn > bestTxn) {
+				bestTxn = txn;
+				txnId = txn;
+				rootPage = root;
+				pageCount = count;
+			}
+		}
+		if (bestTxn < 0) {
+			throw ioError();
+		}
+		ensureMapped(pageCount);
+
+		BitSet used = new BitSet();
+		Deque<Long> todo = new ArrayDeque<Long>();
+		todo.push(rootPage);
+		while (!todo.isEmpty()) {
+			long page = todo.pop();
+			used.set((int) page);
+			Node node = readNode(page);
+			if (node.leaf) {
+				for (Object value : node.values) {
+					if (value instanceof Overflow) {
+						long overflow = ((Overflow) value).firstPage;
+						while (overflow != 0) {
+							used.set((int) overflow);
+							overflow = pageBuffer(overflow).getLong(1);
+						}
+					}
+				}
+			} else {
+				for (Long child : node.children) {
+					todo.push(child);
+				}
+			}
+		}
+		for (long page = FIRST_DATA_PAGE; page < pageCount; page++) {
+			if (!used.get((int) page)) {
+				freePages.add(page);
+			}
+		}
+	}
+
+	private void writeMeta(long slot) {
+		ByteBuffer meta = pageBuffer(slot);
+		meta.putLong(MAGIC);
+		meta.putLong(txnId);
+		meta.putLong(rootPage);
+		meta.putLong(pageCount);
+		meta.putInt(metaChecksum(txnId, rootPage, pageCount));
+	}
+
+	private static int metaChecksum(long txn, long root, long count) {
+		ByteBuffer buf = ByteBuffer.allocate(24);
+		buf.putLong(txn).putLong(root).putLong(count);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, 24);
+		return (int) crc.getValue();
+	}
+
+	// Index of the child of a branch that may hold key
+	private static int childIndex(Node branch, byte[] key) {
+		int lo = 0;
+		int hi = branch.keys.size();
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (KVBytes.compare(branch.keys.get(mid), key) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// Same contract as Collections.binarySearch
+	private static int search(List<byte[]> keys, byte[] key) {
+		int lo = 0;
+		int hi = keys.size() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = KVBytes.compare(keys.get(mid), key);
+			if (cmp < 0) {
+				lo = mid + 1;
+			} else if (cmp > 0) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(lo + 1);
+	}
+
+	private static byte[] encodeKey(Object key) throws KVException {
+		byte[] bytes = KVBytes.toBytes(key);
+		if (bytes.length > MAX_KEY_SIZE) {
+			throw new KVException(new KVMessage("resp", "Over sized key"));
+		}
+		return bytes;
+	}
+
+	private static KVException ioError() {
+		return new KVException(new KVMessage("resp", "IO Error"));
+	}
+}
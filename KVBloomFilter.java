@@ -0,0 +1,130 @@
+/**
+ * Bloom filter over encoded keys
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A fixed-size Bloom filter over encoded keys. Built once when a table is
+ * written and kept in memory, it answers "definitely not present" without
+ * touching the disk. Bit positions come from double hashing a 64-bit hash
+ * of the key.
+ */
+final class KVBloomFilter {
+	private final long[] bits;
+	private final int numBits;
+	private final int numHashes;
+
+	/**
+	 * @param expectedEntries number of keys that will be added
+	 * @param falsePositiveRate target probability that an absent key is reported as present
+	 */
+	KVBloomFilter(int expectedEntries, double falsePositiveRate) {
+		int n = Math.max(1, expectedEntries);
+		double p = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+		long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+		numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+		numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+		bits = new long[(numBits + 63) >>> 6];
+	}
+
+	private KVBloomFilter(long[] bits, int numBits, int numHashes) {
+		this.bits = bits;
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+	}
+
+	void add(byte[] key) {
+		long hash = hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false if key was certainly never added
+	 */
+	boolean mightContain(byte[] key) {
+		long hash = hash64(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Size of the filter in bytes, for memory accounting
+	 */
+	int sizeInBytes() {
+		return bits.length * 8;
+	}
+
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(numBits);
+		out.writeInt(numHashes);
+		out.writeInt(bits.length);
+		for (int i = 0; i < bits.length; i++) {
+			out.writeLong(bits[i]);
+		}
+	}
+
+	static KVBloomFilter readFrom(DataInputStream in) throws IOException {
+		int numBits = in.readInt();
+		int numHashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.readLong();
+		}
+		return new KVBloomFilter(bits, numBits, numHashes);
+	}
+
+	// 64-bit FNV-1a followed by the MurmurHash3 finalizer
+	private static long hash64(byte[] key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length; i++) {
+			h ^= key[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
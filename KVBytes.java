@@ -0,0 +1,145 @@
+/**
+ * Byte-level encoding of keys and values for the on-disk stores
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Converts keys and values to and from the byte arrays written by the storage
+ * engines. Strings, which is what the servers store in practice, are written as
+ * a tag byte followed by their UTF-8 bytes, and raw byte[] values and
+ * KVCompressedBytes follow their tag as they are; anything else falls back to
+ * Java serialization. The tag keeps the forms apart when reading back.
+ */
+final class KVBytes {
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte TAG_STRING = 1;
+	private static final byte TAG_OBJECT = 2;
+	private static final byte TAG_RAW = 3;
+	private static final byte TAG_COMPRESSED = 4;
+
+	private KVBytes() {
+	}
+
+	/**
+	 * Encode an object for storage
+	 * @param obj key or value to encode
+	 * @return tagged byte representation of obj
+	 * @throws KVException if obj cannot be serialized
+	 */
+	static byte[] toBytes(Object obj) throws KVException {
+		if (obj instanceof String) {
+			byte[] utf = ((String) obj).getBytes(UTF8);
+			byte[] bytes = new byte[utf.length + 1];
+			bytes[0] = TAG_STRING;
+			System.arraycopy(utf, 0, bytes, 1, utf.length);
+			return bytes;
+		}
+		if (obj instanceof byte[] || obj instanceof KVCompressedBytes) {
+			boolean compressed = (obj instanceof KVCompressedBytes);
+			byte[] raw = compressed ? ((KVCompressedBytes) obj).getBytes() : (byte[]) obj;
+			byte[] bytes = new byte[raw.length + 1];
+			bytes[0] = compressed ? TAG_COMPRESSED : TAG_RAW;
+			System.arraycopy(raw, 0, bytes, 1, raw.length);
+			return bytes;
+		}
+		try {
+			ByteArrayOutputStream bs = new ByteArrayOutputStream();
+			bs.write(TAG_OBJECT);
+			ObjectOutputStream os = new ObjectOutputStream(bs);
+			os.writeObject(obj);
+			os.close();
+			return bs.toByteArray();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Error serializing object"));
+		}
+	}
+
+	/**
+	 * Decode bytes produced by {@link #toBytes(Object)}
+	 * @param bytes tagged byte representation
+	 * @return the decoded object
+	 * @throws KVException if the bytes cannot be decoded
+	 */
+	static Object fromBytes(byte[] bytes) throws KVException {
+		if (bytes.length == 0) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
+		}
+		if (bytes[0] == TAG_STRING) {
+			return new String(bytes, 1, bytes.length - 1, UTF8);
+		}
+		if (bytes[0] == TAG_RAW || bytes[0] == TAG_COMPRESSED) {
+			byte[] raw = new byte[bytes.length - 1];
+			System.arraycopy(bytes, 1, raw, 0, raw.length);
+			return (bytes[0] == TAG_RAW) ? raw : new KVCompressedBytes(raw);
+		}
+		try {
+			ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+			Object obj = is.readObject();
+			is.close();
+			return obj;
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decode object"));
+		} catch (ClassNotFoundException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Decoding object class not found"));
+		}
+	}
+
+	/**
+	 * Unsigned lexicographic comparison of two encoded keys
+	 */
+	static int compare(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+		for (int i = 0; i < len; i++) {
+			int x = a[i] & 0xff;
+			int y = b[i] & 0xff;
+			if (x != y) {
+				return x - y;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * 32-bit FNV-1a hash of an encoded key
+	 */
+	static int hash(byte[] bytes) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < bytes.length; i++) {
+			h ^= bytes[i] & 0xff;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+}
@@ -1,5 +1,5 @@
 /**
- * Implementation of an LRU Cache (copied from the Internet)
+ * Implementation of a set-associative cache
  * 
  * Copyright (c) 2011, University of California at Berkeley
  * All rights reserved.
@@ -28,82 +28,285 @@
 package edu.berkeley.cs162;
 
 import java.io.Serializable;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * An LRU cache which has a fixed maximum number of elements (cacheSize).
- * If the cache is full and another entry is added, the LRU (least recently used) entry is dropped.
+ * A write-through set-associative cache. Keys are hashed to one of numSets
+ * sets; each set holds at most maxElemsPerSet entries (its ways) and has its
+ * own lock, so operations on keys in different sets never contend. When a
+ * set is full, the entry to drop is chosen within that set only, by LRU
+ * (least recently used) or CLOCK (second chance).
+ * 
+ * With a KVWeigher each set also gets an equal share of a total weight
+ * budget (e.g. bytes), and entries are dropped until a new one fits in
+ * both the ways and the share. An entry heavier than a set's share is not
+ * cached at all. A cache sized only by weight has no limit on its ways:
+ * its sets grow until their share binds, whatever the size of the entries,
+ * and index their keys so that large sets are still searched in constant
+ * time.
  */
 public class KVCache<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V>{
-	private int cacheSize;
-	private LinkedHashMap<K,V> cache;
-	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-	private final Lock read = readWriteLock.readLock();
-	private final Lock write = readWriteLock.writeLock();
+	/**
+	 * Replacement policy applied inside each set
+	 */
+	public enum Policy { LRU, CLOCK }
 
+	/** Ways per set used when only a total size is given */
+	public static final int DEFAULT_WAYS = 8;
+	/** Initial ways of each set of a cache sized only by weight; sets grow from there */
+	public static final int WEIGHTED_WAYS = 64;
 	/**
-	 * Creates a new LRU cache.
+	 * Weight share of each set of a cache sized only by weight: room for two
+	 * of the largest entries a KeyServer accepts, so that no value it stores
+	 * is too heavy to cache
+	 */
+	public static final int WEIGHTED_SET_SHARE = 2 * (KVEncodedSizeWeigher.ENTRY_OVERHEAD
+			+ KeyServer.MAX_KEY_SIZE + KeyServer.MAX_VALUE_SIZE);
+
+	private final int numSets;
+	private final int maxElemsPerSet;
+	private final Policy policy;
+	private final KVWeigher<? super K, ? super V> weigher;
+	private final long maxWeightPerSet;
+	private final CacheSet[] sets;
+
+	/**
+	 * One set of the cache: a few ways searched linearly, or, in a set that
+	 * grows, any number of ways found through an index of their keys
+	 */
+	private static class CacheSet {
+		final ReentrantLock lock = new ReentrantLock();
+		final Policy policy;
+		Object[] keys;
+		Object[] values;
+		// LRU: time of last use; CLOCK: reference bit (0 or 1)
+		long[] use;
+		int[] weights;
+		// Way of each key; only kept by sets that grow
+		final HashMap<Object, Integer> index;
+		long weight = 0;
+		int count = 0;
+		long tick = 0;
+		int hand = 0;
+
+		CacheSet(int ways, Policy policy, boolean indexed) {
+			this.policy = policy;
+			keys = new Object[ways];
+			values = new Object[ways];
+			use = new long[ways];
+			weights = new int[ways];
+			index = indexed ? new HashMap<Object, Integer>() : null;
+		}
+
+		/**
+		 * Doubles the ways once they are all in use
+		 */
+		void ensureRoom() {
+			if (count < keys.length) {
+				return;
+			}
+			int ways = keys.length * 2;
+			keys = Arrays.copyOf(keys, ways);
+			values = Arrays.copyOf(values, ways);
+			use = Arrays.copyOf(use, ways);
+			weights = Arrays.copyOf(weights, ways);
+		}
+
+		void add(Object key, Object value, int weight) {
+			int i = count++;
+			keys[i] = key;
+			values[i] = value;
+			weights[i] = weight;
+			this.weight += weight;
+			if (index != null) {
+				index.put(key, i);
+			}
+			touch(i);
+		}
+
+		int indexOf(Object key) {
+			if (index != null) {
+				Integer i = index.get(key);
+				return (i == null) ? -1 : i;
+			}
+			for (int i = 0; i < count; i++) {
+				if (keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		void touch(int i) {
+			use[i] = (policy == Policy.LRU) ? ++tick : 1;
+		}
+
+		int victim() {
+			if (policy == Policy.LRU) {
+				int lru = 0;
+				for (int i = 1; i < count; i++) {
+					if (use[i] < use[lru]) {
+						lru = i;
+					}
+				}
+				return lru;
+			}
+			while (use[hand] != 0) {
+				use[hand] = 0;
+				hand = (hand + 1) % count;
+			}
+			int victim = hand;
+			hand = (hand + 1) % count;
+			return victim;
+		}
+
+		void remove(int i) {
+			weight -= weights[i];
+			count--;
+			if (index != null) {
+				index.remove(keys[i]);
+				if (i < count) {
+					index.put(keys[count], i);
+				}
+			}
+			keys[i] = keys[count];
+			values[i] = values[count];
+			use[i] = use[count];
+			weights[i] = weights[count];
+			keys[count] = null;
+			values[count] = null;
+			if (hand >= count) {
+				hand = 0;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new LRU cache of DEFAULT_WAYS ways per set.
 	 * @param cacheSize the maximum number of entries that will be kept in this cache.
 	 */
 	public KVCache (int cacheSize) {
-		this.cacheSize = cacheSize;
-		cache = new LinkedHashMap<K,V>(cacheSize);
+		this(Math.max(1, (cacheSize + DEFAULT_WAYS - 1) / DEFAULT_WAYS),
+				Math.max(0, Math.min(cacheSize, DEFAULT_WAYS)), Policy.LRU);
+	}
+
+	/**
+	 * Creates a new LRU cache.
+	 * @param numSets the number of independently locked sets
+	 * @param maxElemsPerSet the maximum number of entries in each set
+	 */
+	public KVCache (int numSets, int maxElemsPerSet) {
+		this(numSets, maxElemsPerSet, Policy.LRU);
+	}
+
+	/**
+	 * @param numSets the number of independently locked sets
+	 * @param maxElemsPerSet the maximum number of entries in each set
+	 * @param policy replacement policy inside a full set
+	 */
+	public KVCache (int numSets, int maxElemsPerSet, Policy policy) {
+		this(numSets, maxElemsPerSet, policy, Long.MAX_VALUE, null);
+	}
+
+	/**
+	 * Creates a new LRU cache bounded only by the total weight of its
+	 * entries, with about WEIGHTED_SET_SHARE of weight per set. Sets start
+	 * with WEIGHTED_WAYS ways and grow as long as their share allows, so
+	 * small entries fill the budget as well as large ones.
+	 * @param maxWeight the maximum total weight, e.g. bytes
+	 * @param weigher computes the weight of each entry
+	 */
+	public KVCache (long maxWeight, KVWeigher<? super K, ? super V> weigher) {
+		this((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxWeight / WEIGHTED_SET_SHARE)),
+				Integer.MAX_VALUE, Policy.LRU, maxWeight, weigher);
+	}
+
+	/**
+	 * @param numSets the number of independently locked sets
+	 * @param maxElemsPerSet the maximum number of entries in each set;
+	 *        Integer.MAX_VALUE, with a weigher, lets sets grow until their weight binds
+	 * @param policy replacement policy inside a full set
+	 * @param maxWeight the maximum total weight, split evenly between the sets
+	 * @param weigher computes the weight of each entry; null bounds the sets by count only
+	 */
+	public KVCache (int numSets, int maxElemsPerSet, Policy policy,
+			long maxWeight, KVWeigher<? super K, ? super V> weigher) {
+		this.numSets = Math.max(1, numSets);
+		this.maxElemsPerSet = Math.max(0, maxElemsPerSet);
+		this.policy = policy;
+		this.weigher = weigher;
+		this.maxWeightPerSet = (weigher == null) ? Long.MAX_VALUE : Math.max(0, maxWeight) / this.numSets;
+		boolean growing = (weigher != null && this.maxElemsPerSet > WEIGHTED_WAYS);
+		sets = new CacheSet[this.numSets];
+		for (int i = 0; i < this.numSets; i++) {
+			sets[i] = new CacheSet(growing ? WEIGHTED_WAYS : this.maxElemsPerSet, policy, growing);
+		}
 	}
 
 	/**
 	 * Retrieves an entry from the cache.
-	 * The retrieved entry becomes the MRU (most recently used) entry.
+	 * The retrieved entry becomes the MRU (most recently used) entry of its set.
 	 * @param key the key whose associated value is to be returned.
 	 * @return the value associated to this key, or null if no value with this key exists in the cache.
 	 */
+	@SuppressWarnings("unchecked")
 	public V get (K key) {
-		read.lock();
-		V entry = cache.get(key);
-		if (entry == null){
-			read.unlock();
-			return null;
+		CacheSet set = setFor(key);
+		set.lock.lock();
+		try {
+			int i = set.indexOf(key);
+			if (i < 0) {
+				return null;
+			}
+			set.touch(i);
+			return (V) set.values[i];
+		} finally {
+			set.lock.unlock();
 		}
-		read.unlock();
-		
-		write.lock();
-		V value = cache.get(key);
-		cache.remove(key);
-		cache.put(key, value);
-		write.unlock();
-		return entry;
 	}
 
 	/**
 	 * Adds an entry to this cache.
-	 * The new entry becomes the MRU (most recently used) entry.
 	 * If an entry with the specified key already exists in the cache, it is replaced by the new entry.
-	 * If the cache is full, the LRU (least recently used) entry is removed from the cache.
+	 * If the set of the key is full, entries of that set are dropped according to the policy.
 	 * @param key    the key with which the specified value is to be associated.
 	 * @param value  a value to be associated with the specified key.
-	 * @return 
+	 * @return whether an entry with this key was overwritten
 	 */
 	public boolean put (K key, V value) {
-		write.lock();
-		if(cache.get(key) != null){ 					//	overwrite/move to front
-			cache.remove(key);
-			cache.put(key,value);
-			write.unlock();
-			return true;
-		}
-		
-		if(cache.size() < cacheSize){ 		//	unique/space for new entries
-			cache.put(key,value);
+		if (maxElemsPerSet == 0) {
+			return false;
 		}
-		else {											//	unique/delete LRU to make space
-			Iterator<K> i = cache.keySet().iterator(); 
-		    cache.remove(i.next());
-			cache.put(key, value);
+		// Every weighed entry counts, so that a set bounded by weight alone stays bounded
+		int weight = (weigher == null) ? 0 : Math.max(1, weigher.weigh(key, value));
+		CacheSet set = setFor(key);
+		set.lock.lock();
+		try {
+			int i = set.indexOf(key);
+			if (i >= 0 && weight == set.weights[i]) {	//	overwrite in place
+				set.values[i] = value;
+				set.touch(i);
+				return true;
+			}
+			boolean overwritten = (i >= 0);
+			if (overwritten) {						//	reinserted below with its new weight
+				set.remove(i);
+			}
+			if (weight > maxWeightPerSet) {
+				return overwritten;
+			}
+			while (set.count == maxElemsPerSet		//	evict within the set
+					|| set.weight + weight > maxWeightPerSet) {
+				set.remove(set.victim());
+			}
+			set.ensureRoom();
+			set.add(key, value, weight);
+			return overwritten;
+		} finally {
+			set.lock.unlock();
 		}
-		write.unlock();
-		return false;
 	}
 
 	/**
@@ -111,21 +314,39 @@ public class KVCache<K extends Serializable, V extends Serializable> implements
 	 * @param key the key with which the specified value is to be associated.
 	 */
 	public void del (K key) {
-		write.lock();
-		cache.remove(key);
-		write.unlock();
+		CacheSet set = setFor(key);
+		set.lock.lock();
+		try {
+			int i = set.indexOf(key);
+			if (i >= 0) {
+				set.remove(i);
+			}
+		} finally {
+			set.lock.unlock();
+		}
 	}
 	
 	public void printAll(){
-		read.lock();
 		System.out.println("====================== printAll KVCache =====================");
-		Iterator<K> i = cache.keySet().iterator();
-		while( i.hasNext() ){
-			K key = i.next();
-			System.out.println("cache.get("+key+"): "+cache.get(key));
+		for (int s = 0; s < numSets; s++) {
+			CacheSet set = sets[s];
+			set.lock.lock();
+			try {
+				for (int i = 0; i < set.count; i++) {
+					System.out.println("set " + s + ": cache.get(" + set.keys[i] + "): " + set.values[i]);
+				}
+			} finally {
+				set.lock.unlock();
+			}
 		}
 		System.out.println("=====================================================");
-		read.unlock();
+	}
+
+	private CacheSet setFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return sets[(h & Integer.MAX_VALUE) % numSets];
 	}
 	
-} // end class LRUCache
\ No newline at end of file
+} // end class KVCache
@@ -0,0 +1,146 @@
+/**
+ * Multi-threaded throughput benchmark for the cache implementations
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures operations per second of the caches under a read-mostly load
+ * from 1 to 32 threads. Each thread issues gets (with the given share of
+ * puts) on keys drawn from a skewed distribution over a key space twice the
+ * cache size, so both hits and evictions are exercised.
+ * 
+ * USAGE: KVCacheBenchmark [cacheSize] [seconds per run] [put percentage]
+ */
+public class KVCacheBenchmark {
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+
+	private interface CacheFactory {
+		String name();
+		KeyValueInterface<String, String> create(int cacheSize);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cacheSize = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+		int putPercent = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+		CacheFactory[] factories = {
+			new CacheFactory() {
+				public String name() { return "KVCache LRU"; }
+				public KeyValueInterface<String, String> create(int size) {
+					return new KVCache<String, String>(size);
+				}
+			},
+			new CacheFactory() {
+				public String name() { return "KVCache CLOCK"; }
+				public KeyValueInterface<String, String> create(int size) {
+					return new KVCache<String, String>((size + KVCache.DEFAULT_WAYS - 1) / KVCache.DEFAULT_WAYS,
+							KVCache.DEFAULT_WAYS, KVCache.Policy.CLOCK);
+				}
+			},
+			new CacheFactory() {
+				public String name() { return "KVClockCache"; }
+				public KeyValueInterface<String, String> create(int size) {
+					return new KVClockCache<String, String>(size);
+				}
+			},
+			new CacheFactory() {
+				public String name() { return "KVTinyLFUCache"; }
+				public KeyValueInterface<String, String> create(int size) {
+					return new KVTinyLFUCache<String, String>(size);
+				}
+			},
+		};
+
+		String[] keys = new String[cacheSize * 2];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = "key" + i;
+		}
+
+		System.out.println("cacheSize=" + cacheSize + " seconds=" + seconds + " puts=" + putPercent + "%");
+		System.out.printf("%-16s", "threads");
+		for (int threads : THREAD_COUNTS) {
+			System.out.printf("%14d", threads);
+		}
+		System.out.println();
+		for (CacheFactory factory : factories) {
+			System.out.printf("%-16s", factory.name());
+			for (int threads : THREAD_COUNTS) {
+				KeyValueInterface<String, String> cache = factory.create(cacheSize);
+				for (int i = 0; i < cacheSize; i++) {
+					cache.put(keys[i], keys[i]);
+				}
+				run(cache, keys, threads, 200, putPercent);	// warm up
+				long ops = run(cache, keys, threads, seconds * 1000, putPercent);
+				System.out.printf("%14d", ops / seconds);
+			}
+			System.out.println("  ops/s");
+		}
+	}
+
+	private static long run(final KeyValueInterface<String, String> cache, final String[] keys, int threads,
+			final long millis, final int putPercent) throws InterruptedException {
+		final AtomicLong total = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			new Thread() {
+				public void run() {
+					Random random = new Random(seed);
+					long ops = 0;
+					try {
+						start.await();
+						long end = System.currentTimeMillis() + millis;
+						while ((ops & 1023) != 0 || System.currentTimeMillis() < end) {
+							// Squaring a uniform draw skews the load towards low key indices
+							double u = random.nextDouble();
+							String key = keys[(int) (u * u * keys.length)];
+							if (random.nextInt(100) < putPercent) {
+								cache.put(key, key);
+							} else {
+								cache.get(key);
+							}
+							ops++;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					total.addAndGet(ops);
+					done.countDown();
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		return total.get();
+	}
+}
@@ -34,8 +34,19 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -53,6 +64,22 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 	private int port = 0;
 	private KVCrypt crypt = null;
 	boolean hasKey = false;			   // whether or not this client has the enKey
+	private boolean binary = false;	   // send requests as binary frames instead of XML
+	private boolean persistent = false; // send requests over one long-lived connection
+	private KVConnection connection = null;
+	// Compresses large values before encryption; always decompresses
+	private volatile KVCompressor compressor = new KVCompressor(KVCompressor.DISABLED);
+	
+	// Optional near cache of decrypted values, keyed by the encoded key
+	private KVExpiringCache<String, V> nearCache = null;
+	private long nearCacheTtl = 0;
+	private SocketServer invalidationServer = null;
+	private String subscriberEndpoint = null;
+	// Bumped on every invalidation; a get that saw it change does not cache
+	private final AtomicLong invalidations = new AtomicLong();
+	// Held while invalidating and while caching a fetched value, so that a
+	// get cannot cache its value just after an invalidation it missed
+	private final Object nearCacheLock = new Object();
 	
 	/**
 	 * @param server is the DNS reference to the Key-Value server
@@ -64,16 +91,148 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 	}
 
 	
+	/**
+	 * Send requests as binary frames instead of XML documents. Responses
+	 * come back in the same format. Any server of this version accepts both.
+	 */
+	public void setBinaryProtocol(boolean binary) {
+		this.binary = binary;
+	}
+	
+	/**
+	 * Compress values whose encoded form is at least threshold bytes with
+	 * Deflate before encrypting them. The compressed bytes are what the
+	 * master, the TPCLog and the slaves' storage engines hold. Compressed
+	 * values can be read by any client, whatever its own threshold.
+	 * @param threshold in bytes; KVCompressor.DISABLED turns compression off
+	 */
+	public void setCompressionThreshold(int threshold) {
+		compressor = new KVCompressor(threshold);
+	}
+	
+	/**
+	 * @return the compressor, whose counters give the compression ratio and
+	 *         time spent since the threshold was last set
+	 */
+	public KVCompressor getCompressor() {
+		return compressor;
+	}
+	
+	/**
+	 * Send all requests over one long-lived connection, reopened if it
+	 * breaks, instead of a new socket per request. Requests from different
+	 * threads share the connection without waiting for each other.
+	 * Implies the binary protocol.
+	 */
+	public void setPersistentConnection(boolean persistent) {
+		this.persistent = persistent;
+		if (persistent) {
+			binary = true;
+		} else {
+			closeConnection();
+		}
+	}
+	
+	/**
+	 * Closes the persistent connection, if any.
+	 */
+	public synchronized void closeConnection() {
+		if (connection != null) {
+			connection.close();
+			connection = null;
+		}
+	}
+	
+	private synchronized KVConnection connection() throws KVException {
+		if (connection == null || !connection.isOpen()) {
+			try {
+				connection = new KVConnection(server, port);
+			} catch (IOException e) {
+				throw new KVException(new KVMessage("resp", null, null, "Network Error: Could not create socket"));
+			}
+		}
+		return connection;
+	}
+	
+	/**
+	 * Serve gets from a local cache of at most size values. A value is kept
+	 * for at most ttlMillis, capped at the master's lease time, and dropped
+	 * earlier when the master reports that the key was written. The master
+	 * reaches this client on a listener socket opened here.
+	 */
+	public synchronized void enableNearCache(int size, long ttlMillis) throws KVException {
+		if (nearCache != null) {
+			return;
+		}
+		try {
+			invalidationServer = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 0);
+			invalidationServer.addHandler(new InvalidationHandler());
+			invalidationServer.connect();
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Network Error: Could not create socket"));
+		}
+		subscriberEndpoint = invalidationServer.getHostname() + ":" + invalidationServer.getPort();
+		Thread listener = new Thread() {
+			public void run() {
+				try {
+					invalidationServer.run();
+				} catch (IOException e) {
+					// listener closed
+				}
+			}
+		};
+		listener.setDaemon(true);
+		listener.start();
+		nearCacheTtl = Math.min(ttlMillis, TPCMaster.LEASE_MILLISECONDS);
+		nearCache = new KVExpiringCache<String, V>(size, nearCacheTtl);
+	}
+
+	/**
+	 * Drops key from the near cache when the master says it was written
+	 */
+	private class InvalidationHandler implements NetworkHandler {
+		@Override
+		public void handle(Socket client) throws IOException {
+			try {
+				KVMessage msg = KVMessage.receive(client.getInputStream());
+				if ("invalidate".equals(msg.getType()) && msg.getKey() != null) {
+					invalidate(msg.getKey());
+				}
+			} catch (KVException e) {
+				// ignore malformed notifications
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	private void invalidate(String skey) {
+		synchronized (nearCacheLock) {
+			invalidations.incrementAndGet();
+			KVExpiringCache<String, V> cache = nearCache;
+			if (cache != null) {
+				cache.del(skey);
+			}
+		}
+	}
+
+	// Caches a value read when the invalidation count was seen, unless an
+	// invalidation has come in since
+	private void cacheIfCurrent(KVExpiringCache<String, V> cache, String skey, V value, long seen, long expires) {
+		synchronized (nearCacheLock) {
+			if (invalidations.get() == seen) {
+				cache.put(skey, value, expires);
+			}
+		}
+	}
+	
 	public void requestEnKey(){
 		//message = Create new KVMessage of type getEnKey
 		KVMessage message = new KVMessage("getEnKey");
 		
-		//Send message to master server
-		String message_str = message.toXML();
-		
 		//response = KVMessage received from master server
 		try {
-			KVMessage response = createRequest(message_str, true);
+			KVMessage response = createRequest(message, true);
 			String enKey = response.getMsg();
 			this.crypt = new KVCrypt(enKey);
 			hasKey = true;
@@ -91,14 +250,67 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 			requestEnKey();
 		} 
 		
+		KVMessage message = putRequest(key, value);
+		if (message == null) {
+			return false;
+		}
+		invalidate(message.getKey());
 		try {
+			KVMessage response = createRequest(message, false);
+			return response.getStatus();
+		} finally {
+			invalidate(message.getKey());
+		}
+	}
+	
+	// Builds a putreq with the value encrypted; null if encryption fails
+	private KVMessage putRequest(K key, V value) throws KVException {
+		checkValueSize(value);
+		try {
+			byte[] compressed = compressor.compress(KVBytes.toBytes(value));
+			if (compressed != null) {
+				KVCompressedBytes cvalue = new KVCompressedBytes(crypt.encrypt(compressed));
+				return new KVMessage( "putreq", KVMessage.encodeObject(key), cvalue, false );
+			}
 			String svalue = KVMessage.encodeObject(crypt.encrypt(KVMessage.encodeObject(value)));
 			String skey = KVMessage.encodeObject(key);
+			return new KVMessage( "putreq", skey, svalue, false );
 			
-			KVMessage message = new KVMessage( "putreq", skey, svalue, false );
-			String message_str = message.toXML();
-			KVMessage response = createRequest(message_str, false);
-			return response.getStatus();
+		} catch (InvalidKeyException e) {
+			e.printStackTrace();
+		} catch (BadPaddingException e) {
+			e.printStackTrace();
+		} catch (IllegalBlockSizeException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+	
+	// The servers check the size of the value they receive, which for a
+	// compressed value is no longer the size of the value itself
+	private static void checkValueSize(Object value) throws KVException {
+		if (KVEncodedSizeWeigher.encodedSize(value) > KeyServer.MAX_VALUE_SIZE) {
+			throw new KVException(new KVMessage("resp", "Over sized value"));
+		}
+	}
+	
+	// Decrypts the value of a get response; null if there is none or decryption fails.
+	// A value stored with putBytes comes back as its byte[].
+	@SuppressWarnings("unchecked")
+	private V decodeValue(KVMessage response) throws KVException {
+		try {
+			if (response.isValueCompressed()) {
+				return (V) KVBytes.fromBytes(compressor.decompress(crypt.decryptBytes(response.getValueBytes())));
+			}
+			if (response.getValueBytes() != null) {
+				return (V) crypt.decryptBytes(response.getValueBytes());
+			}
+			String svalue = response.getValue();
+			byte[] cvalue = (byte[]) KVMessage.decodeObject(svalue);
+			
+			// If no such key, don't decrypt 
+			if( cvalue==null ){ return null; }
+			return (V) KVMessage.decodeObject(crypt.decrypt(cvalue));
 			
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
@@ -107,33 +319,97 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 		} catch (IllegalBlockSizeException e) {
 			e.printStackTrace();
 		}
-		
-		return false;
+		return null;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public V get(K key) throws KVException {
 		
 		if (!hasKey) {   
 			requestEnKey();
 		} 		
+		KVMessage message = new KVMessage( "getreq", key, true );
+		KVExpiringCache<String, V> cache = nearCache;
+		long seen = invalidations.get();
+		long requested = System.currentTimeMillis();
+		if (cache != null) {
+			V cached = cache.get(message.getKey());
+			if (cached != null) {
+				return cached;
+			}
+			message.setMsg(subscriberEndpoint);
+		}
+		KVMessage response = createRequest(message, false);
+		
+		if( isErrorMsg(response) )
+			return null;
+		
+		V value = decodeValue(response);
+		
+		// The lease started no earlier than the request did
+		if (cache != null && value != null) {
+			cacheIfCurrent(cache, message.getKey(), value, seen, requested + nearCacheTtl);
+		}
+		return value;
+	}
+
+	/**
+	 * Puts an opaque value. The bytes are only encrypted, and travel and are
+	 * stored as they are, without the Java serialization and Base64 steps
+	 * of put. Only the binary protocol sends them unencoded; XML needs one
+	 * Base64 pass.
+	 * @return whether an existing value was overwritten
+	 */
+	public boolean putBytes(K key, byte[] value) throws KVException {
+		
+		if (!hasKey) {   
+			requestEnKey();
+		}
+		checkValueSize(value);
+		KVMessage message;
 		try {
-			KVMessage message = new KVMessage( "getreq", key, true );
-			String message_str = message.toXML();
-			KVMessage response = createRequest(message_str, false);
-			
-			if( isErrorMsg(response) )
-				return null;
-			
-			String svalue = response.getValue();
-			byte[] cvalue = (byte[]) KVMessage.decodeObject(svalue);
-			
-			// If no such key, don't decrypt 
-			if( cvalue==null ){ return null; }
-			V value = (V) KVMessage.decodeObject(crypt.decrypt(cvalue));
-			return value;
+			byte[] compressed = compressor.compress(KVBytes.toBytes(value));
+			if (compressed != null) {
+				KVCompressedBytes cvalue = new KVCompressedBytes(crypt.encrypt(compressed));
+				message = new KVMessage( "putreq", KVMessage.encodeObject(key), cvalue, false );
+			} else {
+				message = new KVMessage( "putreq", KVMessage.encodeObject(key), crypt.encrypt(value), false );
+			}
+		} catch (InvalidKeyException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Could not encrypt value"));
+		} catch (BadPaddingException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Could not encrypt value"));
+		} catch (IllegalBlockSizeException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Could not encrypt value"));
+		}
+		invalidate(message.getKey());
+		try {
+			KVMessage response = createRequest(message, false);
+			return response.getStatus();
+		} finally {
+			invalidate(message.getKey());
+		}
+	}
+	
+	/**
+	 * Gets a value stored with putBytes. Bypasses the near cache.
+	 * @return the bytes, or null if the key holds a value stored with put
+	 */
+	public byte[] getBytes(K key) throws KVException {
 		
+		if (!hasKey) {   
+			requestEnKey();
+		}
+		KVMessage response = createRequest(new KVMessage( "getreq", key, true ), false);
+		if (response.getValueBytes() == null) {
+			return null;
+		}
+		try {
+			if (response.isValueCompressed()) {
+				Object value = KVBytes.fromBytes(compressor.decompress(crypt.decryptBytes(response.getValueBytes())));
+				return (value instanceof byte[]) ? (byte[]) value : null;
+			}
+			return crypt.decryptBytes(response.getValueBytes());
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 		} catch (BadPaddingException e) {
@@ -147,25 +423,324 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 	@Override
 	public void del(K key) throws KVException {
 		KVMessage message = new KVMessage( "delreq", key, true );
-		String message_str = message.toXML();
-		createRequest(message_str, false);
+		invalidate(message.getKey());
+		try {
+			createRequest(message, false);
+		} finally {
+			invalidate(message.getKey());
+		}
+	}
+	
+	/**
+	 * Gets several keys with a single mgetreq; the master fetches them
+	 * with one request per slave rather than one per key.
+	 * @return the values found, in the order of keys; keys that do not
+	 *         exist are left out
+	 * @throws KVException if any key failed for another reason
+	 */
+	public Map<K, V> getAll(List<K> keys) throws KVException {
+		
+		if (!hasKey) {   
+			requestEnKey();
+		}
+		Map<K, V> values = new LinkedHashMap<K, V>();
+		KVExpiringCache<String, V> cache = nearCache;
+		long seen = invalidations.get();
+		long requested = System.currentTimeMillis();
+		
+		List<KVMessage.Entry> entries = new ArrayList<KVMessage.Entry>();
+		List<K> fetched = new ArrayList<K>();
+		for (K key : keys) {
+			String skey = KVMessage.encodeObject(key);
+			V cached = (cache != null ? cache.get(skey) : null);
+			if (cached != null) {
+				values.put(key, cached);
+			} else {
+				values.put(key, null);
+				entries.add(new KVMessage.Entry(skey, null, null));
+				fetched.add(key);
+			}
+		}
+		
+		if (!entries.isEmpty()) {
+			KVMessage message = new KVMessage("mgetreq");
+			message.setEntries(entries);
+			if (cache != null) {
+				message.setMsg(subscriberEndpoint);
+			}
+			KVMessage response = createRequest(message, false);
+			List<KVMessage.Entry> results = response.getEntries();
+			if (results == null || results.size() != fetched.size()) {
+				throw new KVException(new KVMessage("resp", "Unknown Error: Invalid response"));
+			}
+			
+			for (int i = 0; i < fetched.size(); i++) {
+				KVMessage.Entry result = results.get(i);
+				if (result.getMsg() != null) {
+					if (!isAbsent(result.getMsg())) {
+						throw new KVException(new KVMessage("resp", result.getMsg()));
+					}
+					values.remove(fetched.get(i));
+					continue;
+				}
+				KVMessage single = new KVMessage("resp", result.getKey(), result.getPayload(), false);
+				V value = decodeValue(single);
+				if (value == null) {
+					values.remove(fetched.get(i));
+					continue;
+				}
+				values.put(fetched.get(i), value);
+				
+				// The lease started no earlier than the request did
+				if (cache != null) {
+					cacheIfCurrent(cache, result.getKey(), value, seen, requested + nearCacheTtl);
+				}
+			}
+		}
+		return values;
+	}
+	
+	// True if every replica reported the key missing
+	private static boolean isAbsent(String error) {
+		for (String line : error.split("\n")) {
+			if (!line.endsWith(TPCMaster.KEY_ABSENT)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Puts several pairs as one mputreq, committed atomically: either all
+	 * of them are stored or none is.
+	 */
+	public void putAll(Map<K, V> pairs) throws KVException {
+		
+		if (!hasKey) {   
+			requestEnKey();
+		}
+		List<KVMessage.Entry> entries = new ArrayList<KVMessage.Entry>();
+		for (Map.Entry<K, V> pair : pairs.entrySet()) {
+			KVMessage message = putRequest(pair.getKey(), pair.getValue());
+			if (message == null) {
+				throw new KVException(new KVMessage("resp", "Unknown Error: Could not encrypt value"));
+			}
+			entries.add(new KVMessage.Entry(message.getKey(), message.getPayload(), null));
+		}
+		writeAll("mputreq", entries);
+	}
+	
+	/**
+	 * Deletes several keys as one mdelreq, committed atomically: if any
+	 * key does not exist, none is deleted.
+	 */
+	public void delAll(Collection<K> keys) throws KVException {
+		List<KVMessage.Entry> entries = new ArrayList<KVMessage.Entry>();
+		for (K key : keys) {
+			entries.add(new KVMessage.Entry(KVMessage.encodeObject(key), null, null));
+		}
+		writeAll("mdelreq", entries);
+	}
+	
+	private void writeAll(String type, List<KVMessage.Entry> entries) throws KVException {
+		if (entries.isEmpty()) {
+			return;
+		}
+		KVMessage message = new KVMessage(type);
+		message.setEntries(entries);
+		for (KVMessage.Entry entry : entries) {
+			invalidate(entry.getKey());
+		}
+		try {
+			createRequest(message, false);
+		} finally {
+			for (KVMessage.Entry entry : entries) {
+				invalidate(entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Sends a get over the persistent connection without waiting for the response.
+	 * @return the value; fails with the KVException the get would have thrown
+	 */
+	public Future<V> submitGet(K key) throws KVException {
+		Batch batch = batch();
+		Future<V> value = batch.get(key);
+		batch.send();
+		return value;
+	}
+	
+	/**
+	 * Sends a put over the persistent connection without waiting for the response.
+	 * @return whether an existing value was overwritten
+	 */
+	public Future<Boolean> submitPut(K key, V value) throws KVException {
+		Batch batch = batch();
+		Future<Boolean> overwritten = batch.put(key, value);
+		batch.send();
+		return overwritten;
+	}
+	
+	/**
+	 * Sends a del over the persistent connection without waiting for the response.
+	 */
+	public Future<Void> submitDel(K key) throws KVException {
+		Batch batch = batch();
+		Future<Void> done = batch.del(key);
+		batch.send();
+		return done;
+	}
+	
+	/**
+	 * Starts a batch of requests to be pipelined on the persistent connection
+	 */
+	public Batch batch() throws KVException {
+		if (!hasKey) {
+			requestEnKey();
+		}
+		return new Batch();
+	}
+	
+	/**
+	 * A list of gets, puts and dels sent back to back on the persistent
+	 * connection (opened if needed) by send(), so that n requests cost one
+	 * round trip instead of n. The master runs them concurrently and in no
+	 * particular order; each returns a Future that completes when its own
+	 * response arrives. Pipelined gets do not go through the near cache.
+	 */
+	public class Batch {
+		private final List<KVMessage> requests = new ArrayList<KVMessage>();
+		private final List<Reply<?>> replies = new ArrayList<Reply<?>>();
+		
+		private Batch() {
+		}
+		
+		public Future<V> get(K key) throws KVException {
+			return add(new KVMessage( "getreq", key, true ), new Reply<V>() {
+				V convert(KVMessage response) throws KVException {
+					return decodeValue(response);
+				}
+			});
+		}
+		
+		public Future<Boolean> put(K key, V value) throws KVException {
+			KVMessage message = putRequest(key, value);
+			if (message == null) {
+				throw new KVException(new KVMessage("resp", "Unknown Error: Could not encrypt value"));
+			}
+			invalidate(message.getKey());
+			return add(message, new Reply<Boolean>() {
+				Boolean convert(KVMessage response) {
+					return response.getStatus();
+				}
+			});
+		}
+		
+		public Future<Void> del(K key) throws KVException {
+			KVMessage message = new KVMessage( "delreq", key, true );
+			invalidate(message.getKey());
+			return add(message, new Reply<Void>() {
+				Void convert(KVMessage response) {
+					return null;
+				}
+			});
+		}
+		
+		/**
+		 * Number of requests added so far
+		 */
+		public int size() {
+			return requests.size();
+		}
+		
+		/**
+		 * Sends every request added so far and clears the batch.
+		 */
+		public void send() throws KVException {
+			List<Future<KVMessage>> responses = connection().submitAll(requests);
+			for (int i = 0; i < responses.size(); i++) {
+				replies.get(i).bind(responses.get(i));
+			}
+			requests.clear();
+			replies.clear();
+		}
+		
+		private <T> Future<T> add(KVMessage request, Reply<T> reply) {
+			requests.add(request);
+			replies.add(reply);
+			return reply;
+		}
+	}
+	
+	/**
+	 * Result of a pipelined request, converted from its response message
+	 */
+	private abstract static class Reply<T> implements Future<T> {
+		private volatile Future<KVMessage> response = null;
+		
+		abstract T convert(KVMessage response) throws KVException;
+		
+		void bind(Future<KVMessage> response) {
+			this.response = response;
+		}
+		
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+		
+		public boolean isCancelled() {
+			return false;
+		}
+		
+		public boolean isDone() {
+			return response != null && response.isDone();
+		}
+		
+		public T get() throws InterruptedException, ExecutionException {
+			return result(sent().get());
+		}
+		
+		public T get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			return result(sent().get(timeout, unit));
+		}
+		
+		private Future<KVMessage> sent() {
+			if (response == null) {
+				throw new IllegalStateException("Batch not sent");
+			}
+			return response;
+		}
+		
+		private T result(KVMessage response) throws ExecutionException {
+			try {
+				return convert(checkResponse(response, false));
+			} catch (KVException e) {
+				throw new ExecutionException(e);
+			}
+		}
 	}
 	
 	// private method to create requests and return the response from the server
-	private KVMessage createRequest(String msg_str, boolean enkey) throws KVException{
+	private KVMessage createRequest(KVMessage msg, boolean enkey) throws KVException{
 		
 		KVMessage response = null;
+		if (persistent) {
+			response = connection().request(msg);
+			return checkResponse(response, enkey);
+		}
 		Socket socket = null;
 		try{
 			// Write request to server
 			socket = new Socket(server, port);
 			DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
-			out.writeBytes(msg_str);
+			msg.send(out, binary);
 			socket.shutdownOutput();
 			
 			// Receive response from server
 			InputStream input = socket.getInputStream();
-			response = new KVMessage( input );
+			response = KVMessage.receive( input );
 			socket.close();
 			
 		} catch (IOException e) {
@@ -181,8 +756,15 @@ public class KVClient<K extends Serializable, V extends Serializable> implements
 			else throw new KVException(new KVMessage("resp", null, null, "Network Error: Could not send data"));
 		}
 		
-		System.out.println("----\tREQUEST: "+msg_str+" is \n\t"+"RESPONSE: "+response.toXML()+"\n");
+		// Dumping the exchange as XML would cost more than a binary exchange itself
+		if( !binary ){
+			System.out.println("----\tREQUEST: "+msg.toXML()+" is \n\t"+"RESPONSE: "+response.toXML()+"\n");
+		}
 		
+		return checkResponse(response, enkey);
+	}
+	
+	private static KVMessage checkResponse(KVMessage response, boolean enkey) throws KVException {
 		if( !enkey && isErrorMsg(response) ){
 			//System.out.println("KVClient createRequest: KVException!! Error message is "+response.getMsg());
 			throw new KVException(response);
@@ -30,10 +30,11 @@
  */
 package edu.berkeley.cs162;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
 
 /**
@@ -43,7 +44,7 @@ import java.net.Socket;
  * @param <K> Java Generic type for the Key
  * @param <V> Java Generic type for the Value
  */
-public class KVClientHandler<K extends Serializable, V extends Serializable> implements NetworkHandler {
+public class KVClientHandler<K extends Serializable, V extends Serializable> implements NetworkHandler, MessageHandler {
 	private KeyServer<K, V> keyserver = null;
 	private ThreadPool threadpool = null;
 	private TPCMaster<K, V> tpcMaster = null;
@@ -58,7 +59,7 @@ public class KVClientHandler<K extends Serializable, V extends Serializable> imp
 
 	private void initialize(KeyServer<K, V> keyserver, int connections) {
 		this.keyserver = keyserver;
-		threadpool = new ThreadPool(connections);	
+		threadpool = ThreadPool.forRequests(connections);	
 	}
 	
 	public KVClientHandler(KeyServer<K, V> keyserver, TPCMaster<K, V> tpcMaster) {
@@ -71,7 +72,7 @@ public class KVClientHandler<K extends Serializable, V extends Serializable> imp
 
 	private void initialize(KeyServer<K, V> keyserver, int connections, TPCMaster<K, V> tpcMaster) {
 		this.keyserver = keyserver;
-		threadpool = new ThreadPool(connections);
+		threadpool = ThreadPool.forRequests(connections);
 		this.tpcMaster = tpcMaster; 
 	}
 
@@ -81,39 +82,86 @@ public class KVClientHandler<K extends Serializable, V extends Serializable> imp
 	@Override
 	public void handle(Socket client) throws IOException {
 		
-		// implement me
+		KVMessage request = null;
+		InputStream in = client.getInputStream();
 		try {
-			KVMessage response = null;
-			KVRunnable<K, V> task;
-			InputStream in = client.getInputStream();
-			try {
-				response = new KVMessage(in);
-			} catch (KVException e) {
-				response = e.getMsg();
-			}
-			task = new KVRunnable<K, V>(client, tpcMaster, response);
-			threadpool.addToQueue(task);
+			request = KVMessage.receive(in);
+		} catch (KVException e) {
+			new OneShotResponder(client, false).respond(e.getMsg());
+			return;
+		}
+		
+		// A tagged request opens a persistent connection; read it on its own thread
+		if (FramedConnectionReader.serveIfPersistent(client, request, this)) {
+			return;
+		}
+		handleMessage(request, new OneShotResponder(client, request.isBinary()));
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.berkeley.cs162.MessageHandler#handleMessage(edu.berkeley.cs162.KVMessage, edu.berkeley.cs162.KVResponder)
+	 */
+	@Override
+	public void handleMessage(KVMessage request, KVResponder responder) {
+		// A near cache may only subscribe from the host that asks for the lease
+		if (tpcMaster != null && request.getMsg() != null
+				&& ("getreq".equals(request.getType()) || "mgetreq".equals(request.getType()))
+				&& !isOnHost(request.getMsg(), responder.getRemoteAddress())) {
+			request.setMsg(null);
+		}
+		try {
+			threadpool.addToQueue(new KVRunnable<K, V>(tpcMaster, request, responder));
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * @return whether the "host:port" endpoint is on remote. A client
+	 *         connected over loopback may name any address of this machine.
+	 */
+	static boolean isOnHost(String endpoint, InetAddress remote) {
+		int colon = endpoint.lastIndexOf(':');
+		if (colon < 0 || remote == null) {
+			return false;
+		}
+		String host = endpoint.substring(0, colon);
+		if (host.equals(remote.getHostAddress())) {
+			return true;
+		}
+		if (!remote.isLoopbackAddress()) {
+			return false;
+		}
+		try {
+			InetAddress address = InetAddress.getByName(host);
+			return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the pool the requests run on, for its metrics and sizing
+	 */
+	public ThreadPool getThreadPool() {
+		return threadpool;
+	}
 }
-class KVRunnable<K extends Serializable, V extends Serializable> implements Runnable{
-	Socket clientSocket;
+class KVRunnable<K extends Serializable, V extends Serializable> implements RejectableTask{
 	TPCMaster<K, V> tpcMaster;
 	KVMessage requestMsg;
+	KVResponder responder;
 	
-    public KVRunnable( Socket client, TPCMaster<K, V> ks, KVMessage msg ){
-        clientSocket = client;
+    public KVRunnable( TPCMaster<K, V> ks, KVMessage msg, KVResponder responder ){
         tpcMaster = ks;
         requestMsg = msg;
+        this.responder = responder;
     }
     
 	@Override
 	public void run() {
 		K key;
 		V value;
-		String message;
 		String type = requestMsg.getType();
 		KVMessage response = null;
 		
@@ -127,29 +175,13 @@ class KVRunnable<K extends Serializable, V extends Serializable> implements Runn
 			} catch (KVException e) {
 				response = e.getMsg();
 			}
-
-			// SHOULD NEVER HAPPEN
-			if( response==null ) return;
-			
-			// Send XML version of response back to client
-			try{
-				message = response.toXML();
-				DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-				out.write(message.getBytes());
-				clientSocket.shutdownOutput();
-				clientSocket.close();
-			} catch( IOException e ){
-				e.printStackTrace();
-			}
-			
-			
 		}
-		if (type.equals("putreq")) {
+		else if (type.equals("putreq")) {
 			try {
 				if( requestMsg.getKey().equals("") ){
 					response = new KVMessage ("resp", "Empty key");
 				}
-				else if( requestMsg.getValue().equals("") ){
+				else if( "".equals(requestMsg.getPayload()) ){
 					response = new KVMessage ("resp", "Empty value");
 				}
 				else{
@@ -159,23 +191,8 @@ class KVRunnable<K extends Serializable, V extends Serializable> implements Runn
 			} catch (KVException e) {
 				response = e.getMsg();				
 			}
-			
-			// SHOULD NEVER HAPPEN
-			if( response==null ) return;
-			
-			// transfer message to XML form and sent it back to client.
-			try {
-				message = response.toXML();
-				DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-				out.write(message.getBytes());
-				clientSocket.shutdownOutput();
-				clientSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-
 		}
-		if (type.equals("delreq")) {
+		else if (type.equals("delreq")) {
 			try {
 				tpcMaster.performTPCOperation(requestMsg, false);
 				// create successful get response KVMessage named response...
@@ -183,36 +200,65 @@ class KVRunnable<K extends Serializable, V extends Serializable> implements Runn
 			} catch (KVException e) {
 				response = e.getMsg();	
 			}
-			
-			// SHOULD NEVER HAPPEN
-			if( response==null ) return;
-			
-			// transfer message to XML form and sent it back to client.
+		}
+		else if (type.equals("mgetreq")) {
 			try {
-				message = response.toXML();
-				DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-				out.write(message.getBytes());
-				clientSocket.shutdownOutput();
-				clientSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+				response = tpcMaster.handleMultiGet(requestMsg);
+			} catch (KVException e) {
+				response = e.getMsg();
 			}
 		}
-        if(type.equals("getEnKey")){
+		else if (type.equals("mputreq") || type.equals("mdelreq")) {
+			try {
+				if( requestMsg.getEntries()==null ){
+					response = new KVMessage ("resp", "Empty batch");
+				}
+				else{
+					for (KVMessage.Entry entry : requestMsg.getEntries()) {
+						if( entry.getKey()==null || entry.getKey().equals("") ){
+							response = new KVMessage ("resp", "Empty key");
+						}
+						else if( type.equals("mputreq") && (entry.getPayload()==null || "".equals(entry.getPayload())) ){
+							response = new KVMessage ("resp", "Empty value");
+						}
+					}
+				}
+				if( response==null ){
+					tpcMaster.performMultiTPCOperation(requestMsg, type.equals("mputreq"));
+					response = new KVMessage("resp", "Success");
+				}
+			} catch (KVException e) {
+				response = e.getMsg();
+			}
+		}
+		else if(type.equals("getEnKey")){
         	//Create new KVMessage with TPCMaster.crypt.keyStr as the msg
         	String enkeys = tpcMaster.getkeyStr();
         	response = new KVMessage("resp", enkeys);
-        	
-			try {
-				message = response.toXML();
-				DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-				out.write(message.getBytes());
-				clientSocket.shutdownOutput();
-				clientSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}        	
         }
+		else {
+			response = new KVMessage("resp", "Unknown Error: Invalid request type " + type);
+		}
+		
+		// SHOULD NEVER HAPPEN
+		if( response==null ) return;
+		
+		// send the response back in the format of the request
+		try {
+			responder.respond(response);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}	
-}
 
+	/**
+	 * The pool is full: tell the client instead of leaving it waiting
+	 */
+	public void reject() {
+		try {
+			responder.respond(new KVMessage("resp", "Server busy"));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Concurrent cache with lock-free reads and CLOCK eviction
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache whose hits take no lock: a get is one ConcurrentHashMap lookup
+ * plus setting the entry's reference bit. Entries also sit in a ring of
+ * cacheSize slots; only inserts and deletes lock the ring, and an insert
+ * into a full cache sweeps the CLOCK hand over it, clearing reference bits
+ * until it finds an entry that was not used since the last sweep.
+ */
+public class KVClockCache<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	private static class Node<K, V> {
+		final K key;
+		volatile V value;
+		volatile boolean referenced;
+		int slot;			// guarded by ringLock
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private final int cacheSize;
+	private final ConcurrentHashMap<K, Node<K, V>> map;
+	private final Node<K, V>[] ring;
+	private final ReentrantLock ringLock = new ReentrantLock();
+	private int count = 0;
+	private int hand = 0;
+
+	/**
+	 * @param cacheSize the maximum number of entries that will be kept in this cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public KVClockCache(int cacheSize) {
+		this.cacheSize = Math.max(0, cacheSize);
+		map = new ConcurrentHashMap<K, Node<K, V>>(Math.max(16, this.cacheSize * 4 / 3 + 1));
+		ring = (Node<K, V>[]) new Node<?, ?>[this.cacheSize];
+	}
+
+	/**
+	 * Retrieves an entry from the cache and marks it as recently used.
+	 * @return the value associated to this key, or null if it is not cached
+	 */
+	public V get(K key) {
+		Node<K, V> node = map.get(key);
+		if (node == null) {
+			return null;
+		}
+		if (!node.referenced) {
+			node.referenced = true;
+		}
+		return node.value;
+	}
+
+	/**
+	 * Adds or replaces an entry. Inserting into a full cache evicts the
+	 * first entry under the CLOCK hand whose reference bit is clear.
+	 * @return whether an entry with this key was overwritten
+	 */
+	public boolean put(K key, V value) {
+		if (cacheSize == 0) {
+			return false;
+		}
+		ringLock.lock();
+		try {
+			Node<K, V> node = map.get(key);
+			if (node != null) {
+				node.value = value;
+				node.referenced = true;
+				return true;
+			}
+			node = new Node<K, V>(key, value);
+			if (count < cacheSize) {
+				node.slot = count++;
+			} else {
+				while (ring[hand].referenced) {
+					ring[hand].referenced = false;
+					hand = (hand + 1) % cacheSize;
+				}
+				map.remove(ring[hand].key);
+				node.slot = hand;
+				hand = (hand + 1) % cacheSize;
+			}
+			ring[node.slot] = node;
+			map.put(key, node);
+			return false;
+		} finally {
+			ringLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entry from this cache.
+	 */
+	public void del(K key) {
+		ringLock.lock();
+		try {
+			Node<K, V> node = map.remove(key);
+			if (node == null) {
+				return;
+			}
+			// Keep the ring dense by moving the last entry into the hole
+			count--;
+			Node<K, V> last = ring[count];
+			ring[node.slot] = last;
+			last.slot = node.slot;
+			ring[count] = null;
+			if (hand >= count) {
+				hand = 0;
+			}
+		} finally {
+			ringLock.unlock();
+		}
+	}
+
+	/**
+	 * Number of entries currently cached
+	 */
+	public int size() {
+		return map.size();
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * Deflate compression of values with statistics
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values of at least a threshold size with Deflate, and counts
+ * what that saves and costs. Values are compressed by the client, before
+ * they are encrypted, as ciphertext does not compress.
+ */
+public class KVCompressor {
+	/** Threshold that disables compression */
+	public static final int DISABLED = Integer.MAX_VALUE;
+
+	private final int threshold;
+	private final int level;
+
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong compressNanos = new AtomicLong();
+	private final AtomicLong decompressed = new AtomicLong();
+	private final AtomicLong decompressNanos = new AtomicLong();
+
+	/**
+	 * @param threshold smallest value, in bytes, worth compressing
+	 */
+	public KVCompressor(int threshold) {
+		this(threshold, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param threshold smallest value, in bytes, worth compressing
+	 * @param level Deflater compression level
+	 */
+	public KVCompressor(int threshold, int level) {
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	/**
+	 * @return the compressed bytes, or null if input is below the threshold
+	 *         or does not get smaller
+	 */
+	public byte[] compress(byte[] input) {
+		if (input.length < threshold) {
+			return null;
+		}
+		long start = System.nanoTime();
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(input);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+			byte[] buf = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buf);
+				out.write(buf, 0, n);
+				if (out.size() >= input.length) {
+					return null;
+				}
+			}
+			byte[] output = out.toByteArray();
+			compressed.incrementAndGet();
+			bytesIn.addAndGet(input.length);
+			bytesOut.addAndGet(output.length);
+			return output;
+		} finally {
+			deflater.end();
+			compressNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @param input bytes produced by compress
+	 * @return the original bytes
+	 * @throws KVException if input is not valid Deflate data or inflates
+	 *         beyond KVMessage.MAX_FRAME_LENGTH
+	 */
+	public byte[] decompress(byte[] input) throws KVException {
+		long start = System.nanoTime();
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(input);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 4);
+			byte[] buf = new byte[8192];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buf);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new DataFormatException("truncated input");
+				}
+				out.write(buf, 0, n);
+				if (out.size() > KVMessage.MAX_FRAME_LENGTH) {
+					throw new DataFormatException("value too large");
+				}
+			}
+			decompressed.incrementAndGet();
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new KVException(new KVMessage("resp", "Unknown Error: Unable to decompress value"));
+		} finally {
+			inflater.end();
+			decompressNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return number of values compressed
+	 */
+	public long getCompressedCount() {
+		return compressed.get();
+	}
+
+	/**
+	 * @return total size of the values compressed, before compression
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return total size of the values compressed, after compression
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return compressed size over original size of all compressed values,
+	 *         or 1 if none was compressed
+	 */
+	public double getCompressionRatio() {
+		long in = bytesIn.get();
+		return (in == 0) ? 1.0 : (double) bytesOut.get() / in;
+	}
+
+	/**
+	 * @return time spent compressing, including attempts that did not pay off
+	 */
+	public long getCompressNanos() {
+		return compressNanos.get();
+	}
+
+	/**
+	 * @return number of values decompressed
+	 */
+	public long getDecompressedCount() {
+		return decompressed.get();
+	}
+
+	public long getDecompressNanos() {
+		return decompressNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("compressed=%d ratio=%.3f compressMs=%.1f decompressed=%d decompressMs=%.1f",
+				getCompressedCount(), getCompressionRatio(), getCompressNanos() / 1e6,
+				getDecompressedCount(), getDecompressNanos() / 1e6);
+	}
+}
@@ -0,0 +1,258 @@
+/**
+ * Persistent multiplexed connection to a server
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived connection that carries many requests as binary frames, each
+ * tagged with a request ID. Any number of threads may submit requests
+ * without waiting for earlier ones; a reader thread matches each response
+ * frame to its request by ID, so the server may answer out of order.
+ * 
+ * When the connection fails, every outstanding request fails with a
+ * network error and the connection stays closed; callers open a new one.
+ */
+public class KVConnection {
+	private final Socket socket;
+	private final OutputStream out;
+	private final InputStream in;
+	private final AtomicLong nextRequestId = new AtomicLong();
+	private final ConcurrentHashMap<Long, PendingResponse> pending =
+			new ConcurrentHashMap<Long, PendingResponse>();
+	private volatile boolean open = true;
+
+	/**
+	 * Response to a request that may not have arrived yet. A request whose
+	 * wait times out, or that is cancelled, stops being tracked; a response
+	 * that arrives for it later is dropped.
+	 */
+	private class PendingResponse implements Future<KVMessage> {
+		private final long id;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile KVMessage response;
+		private volatile KVException error;
+		private volatile boolean cancelled = false;
+
+		PendingResponse(long id) {
+			this.id = id;
+		}
+
+		void complete(KVMessage response) {
+			this.response = response;
+			done.countDown();
+		}
+
+		void fail(KVException error) {
+			this.error = error;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!pending.remove(id, this)) {
+				return false;
+			}
+			cancelled = true;
+			fail(new KVException(new KVMessage("resp", "Unknown Error: Request cancelled")));
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return done.getCount() == 0;
+		}
+
+		public KVMessage get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		public KVMessage get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) {
+				if (pending.remove(id, this)) {
+					throw new TimeoutException();
+				}
+				// The response arrived, or the connection failed, just now
+				done.await();
+			}
+			return result();
+		}
+
+		private KVMessage result() throws ExecutionException {
+			if (cancelled) {
+				throw new CancellationException();
+			}
+			if (error != null) {
+				throw new ExecutionException(error);
+			}
+			return response;
+		}
+	}
+
+	/**
+	 * Connects and starts the reader thread.
+	 */
+	public KVConnection(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		out = new BufferedOutputStream(socket.getOutputStream());
+		in = new BufferedInputStream(socket.getInputStream());
+		Thread reader = new Thread() {
+			public void run() {
+				readResponses();
+			}
+		};
+		reader.setName("KVConnection reader " + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends a request without waiting for its response.
+	 * @return the response; fails with the KVException of a network error
+	 *         if the connection breaks first
+	 */
+	public Future<KVMessage> submit(KVMessage request) {
+		return submitAll(Collections.singletonList(request)).get(0);
+	}
+
+	/**
+	 * Sends requests back to back, flushing once, without waiting for any
+	 * response. The server may process them concurrently.
+	 * @return the responses, in the order of the requests
+	 */
+	public List<Future<KVMessage>> submitAll(List<KVMessage> requests) {
+		List<Future<KVMessage>> responses = new ArrayList<Future<KVMessage>>(requests.size());
+		List<ByteBuffer> frames = new ArrayList<ByteBuffer>(requests.size());
+		for (KVMessage request : requests) {
+			long id = nextRequestId.incrementAndGet();
+			PendingResponse response = new PendingResponse(id);
+			pending.put(id, response);
+			responses.add(response);
+			frames.add(request.toBinary(id));
+		}
+		if (!open) {
+			failAll();
+			return responses;
+		}
+		try {
+			synchronized (out) {
+				for (ByteBuffer frame : frames) {
+					out.write(frame.array(), 0, frame.limit());
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			close();
+		}
+		return responses;
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 */
+	public KVMessage request(KVMessage request) throws KVException {
+		return await(submit(request));
+	}
+
+	/**
+	 * Waits for a response returned by submit().
+	 */
+	public static KVMessage await(Future<KVMessage> response) throws KVException {
+		try {
+			return response.get();
+		} catch (ExecutionException e) {
+			throw (KVException) e.getCause();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KVException(new KVMessage("resp", "Unknown Error! Please try again later."));
+		}
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes the connection and fails the requests still outstanding.
+	 */
+	public void close() {
+		open = false;
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		failAll();
+	}
+
+	private void readResponses() {
+		try {
+			while (open) {
+				KVMessage response = KVMessage.receive(in);
+				PendingResponse waiting = pending.remove(response.getRequestId());
+				if (waiting != null) {
+					waiting.complete(response);
+				}
+			}
+		} catch (KVException e) {
+			// connection closed or broken
+		} finally {
+			close();
+		}
+	}
+
+	private void failAll() {
+		for (Long id : pending.keySet()) {
+			PendingResponse waiting = pending.remove(id);
+			if (waiting != null) {
+				waiting.fail(new KVException(new KVMessage("resp", "Network Error: Could not receive data")));
+			}
+		}
+	}
+}
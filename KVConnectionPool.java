@@ -0,0 +1,254 @@
+/**
+ * Pool of reusable connections to slaves
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps KVConnections to each host:port open for reuse, so that a request
+ * does not pay for a connection setup. A KVConnection already carries any
+ * number of concurrent requests; the pool opens another one to the same
+ * endpoint only while every open one is busy, up to maxPerEndpoint, and
+ * after that shares the least busy one.
+ * 
+ * Health checks: a connection whose reader has seen it close is never
+ * handed out, a request that finds a reused connection broken is retried
+ * once on a fresh one, since the peer may simply have restarted, and a
+ * connection on which a request timed out is closed.
+ * A sweeper thread closes connections left idle for idleMillis.
+ */
+public class KVConnectionPool {
+	private final int maxPerEndpoint;
+	private final long idleMillis;
+	private final ConcurrentHashMap<String, List<Pooled>> endpoints =
+			new ConcurrentHashMap<String, List<Pooled>>();
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * A connection and how it is being used
+	 */
+	private static class Pooled {
+		final KVConnection connection;
+		final AtomicInteger inFlight = new AtomicInteger();
+		volatile long lastUsed = System.currentTimeMillis();
+
+		Pooled(KVConnection connection) {
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * @param maxPerEndpoint most connections kept open to one host:port
+	 * @param idleMillis how long an unused connection stays open
+	 */
+	public KVConnectionPool(int maxPerEndpoint, long idleMillis) {
+		this.maxPerEndpoint = Math.max(1, maxPerEndpoint);
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * Starts the sweeper once the pool has something to sweep
+	 */
+	private void startSweeper() {
+		if (!sweeping.compareAndSet(false, true)) {
+			return;
+		}
+		Thread sweeper = new Thread() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Math.max(1000, idleMillis / 2));
+					} catch (InterruptedException e) {
+						return;
+					}
+					evictIdle();
+				}
+			}
+		};
+		sweeper.setName("KVConnectionPool sweeper");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * Sends a request to host:port over a pooled connection and waits for
+	 * its response.
+	 * @param timeoutMillis how long to wait for the response; 0 waits forever
+	 * @throws java.net.ConnectException if no connection could be opened
+	 * @throws IOException if the connection broke before the response came
+	 * @throws TimeoutException if the response took longer than timeoutMillis
+	 */
+	public KVMessage request(String host, int port, KVMessage request, long timeoutMillis)
+			throws IOException, TimeoutException, InterruptedException {
+		for (int attempt = 0; ; attempt++) {
+			boolean[] fresh = new boolean[1];
+			Pooled pooled = borrow(host, port, fresh);
+			try {
+				Future<KVMessage> response = pooled.connection.submit(request);
+				try {
+					return (timeoutMillis > 0) ? response.get(timeoutMillis, TimeUnit.MILLISECONDS)
+							: response.get();
+				} catch (ExecutionException e) {
+					// Only a broken connection fails a KVConnection response
+					discard(host, port, pooled);
+					if (fresh[0] || attempt > 0) {
+						throw new IOException(((KVException) e.getCause()).getMsg().getMsg());
+					}
+				} catch (TimeoutException e) {
+					// A peer that stopped answering must not be lent out again
+					response.cancel(false);
+					discard(host, port, pooled);
+					throw e;
+				}
+			} finally {
+				pooled.inFlight.decrementAndGet();
+				pooled.lastUsed = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * @param fresh set to whether the connection was opened for this call
+	 */
+	private Pooled borrow(String host, int port, boolean[] fresh) throws IOException {
+		String endpoint = host + ":" + port;
+		List<Pooled> pool = endpoints.get(endpoint);
+		if (pool == null) {
+			List<Pooled> created = new ArrayList<Pooled>();
+			pool = endpoints.putIfAbsent(endpoint, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+		synchronized (pool) {
+			Pooled best = null;
+			for (Iterator<Pooled> it = pool.iterator(); it.hasNext(); ) {
+				Pooled pooled = it.next();
+				if (!pooled.connection.isOpen()) {
+					it.remove();
+					evicted.incrementAndGet();
+				} else if (best == null || pooled.inFlight.get() < best.inFlight.get()) {
+					best = pooled;
+				}
+			}
+			if (best != null && (best.inFlight.get() == 0 || pool.size() >= maxPerEndpoint)) {
+				best.inFlight.incrementAndGet();
+				reused.incrementAndGet();
+				return best;
+			}
+		}
+		startSweeper();
+		// Connect outside the lock so a slow connect does not hold up the other callers
+		Pooled pooled = new Pooled(new KVConnection(host, port));
+		pooled.inFlight.incrementAndGet();
+		opened.incrementAndGet();
+		fresh[0] = true;
+		synchronized (pool) {
+			pool.add(pooled);
+		}
+		return pooled;
+	}
+
+	private void discard(String host, int port, Pooled pooled) {
+		pooled.connection.close();
+		List<Pooled> pool = endpoints.get(host + ":" + port);
+		if (pool != null) {
+			synchronized (pool) {
+				if (pool.remove(pooled)) {
+					evicted.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes connections that are broken or have been idle for idleMillis
+	 */
+	public void evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleMillis;
+		for (List<Pooled> pool : endpoints.values()) {
+			synchronized (pool) {
+				for (Iterator<Pooled> it = pool.iterator(); it.hasNext(); ) {
+					Pooled pooled = it.next();
+					if (!pooled.connection.isOpen()
+							|| (pooled.inFlight.get() == 0 && pooled.lastUsed < cutoff)) {
+						it.remove();
+						pooled.connection.close();
+						evicted.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return connections currently open, over all endpoints
+	 */
+	public int getOpenCount() {
+		int open = 0;
+		for (List<Pooled> pool : endpoints.values()) {
+			synchronized (pool) {
+				open += pool.size();
+			}
+		}
+		return open;
+	}
+
+	public long getOpenedCount() {
+		return opened.get();
+	}
+
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	@Override
+	public String toString() {
+		return "open=" + getOpenCount() + " opened=" + opened.get() + " reused=" + reused.get()
+				+ " evicted=" + evicted.get();
+	}
+}
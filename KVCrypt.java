@@ -80,50 +80,60 @@ public class KVCrypt {
         throws InvalidKeyException, 
                BadPaddingException,
                IllegalBlockSizeException {
-    	// implement me
-    	
-    	try {
-			cipher = Cipher.getInstance(algorithm);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (NoSuchPaddingException e) {
-			e.printStackTrace();
-		}
-    	cipher.init(Cipher.ENCRYPT_MODE, key);
     	byte[] utf8;
 		try {
 			utf8 = input.getBytes("UTF8");
-			byte[] output = cipher.doFinal(utf8);
-	    	return output; 
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
 			return null;
 		}
+		return encrypt(utf8);
+    }
 
+    /**
+     * Encrypts opaque bytes, for values sent without any encoding
+     */
+    public byte[] encrypt(byte[] input)
+        throws InvalidKeyException, 
+               BadPaddingException,
+               IllegalBlockSizeException {
+    	return newCipher(Cipher.ENCRYPT_MODE).doFinal(input);
     }
 
     public String decrypt(byte[] encryptionBytes)
         throws InvalidKeyException, 
                BadPaddingException,
                IllegalBlockSizeException {
-    	// implement me
-    	try {
-			cipher = Cipher.getInstance(algorithm);
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		} catch (NoSuchPaddingException e) {
-			e.printStackTrace();
-		}
-    	
-    	cipher.init(Cipher.DECRYPT_MODE, key);
-    	byte[] utf8 = cipher.doFinal(encryptionBytes);
+    	byte[] utf8 = decryptBytes(encryptionBytes);
     	try {
 			return new String(utf8, "UTF8");
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
 			return null;
 		}
-    	
-
       }
+
+    /**
+     * Decrypts bytes produced by encrypt(byte[])
+     */
+    public byte[] decryptBytes(byte[] encryptionBytes)
+        throws InvalidKeyException, 
+               BadPaddingException,
+               IllegalBlockSizeException {
+    	return newCipher(Cipher.DECRYPT_MODE).doFinal(encryptionBytes);
+    }
+
+    // A Cipher is stateful, so each call uses its own; callers may share this KVCrypt
+    private Cipher newCipher(int mode) throws InvalidKeyException {
+    	Cipher cipher = null;
+    	try {
+			cipher = Cipher.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (NoSuchPaddingException e) {
+			e.printStackTrace();
+		}
+    	cipher.init(mode, key);
+    	return cipher;
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * Weigher based on the encoded size of an entry
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Weighs an entry by the bytes its key and value take once encoded, plus a
+ * fixed allowance for the cache's own bookkeeping. Strings, which is what
+ * the servers cache, are measured as UTF-8 without being copied.
+ */
+public class KVEncodedSizeWeigher implements KVWeigher<Object, Object> {
+	/** Rough per-entry cost of the cache's node, map entry and references */
+	public static final int ENTRY_OVERHEAD = 64;
+
+	@Override
+	public int weigh(Object key, Object value) {
+		long weight = ENTRY_OVERHEAD + encodedSize(key) + encodedSize(value);
+		return (int) Math.min(weight, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the encoded size in bytes of a key or value
+	 */
+	public static int encodedSize(Object obj) {
+		if (obj == null) {
+			return 0;
+		}
+		if (obj instanceof String) {
+			return utf8Length((String) obj);
+		}
+		if (obj instanceof byte[]) {
+			return ((byte[]) obj).length;
+		}
+		if (obj instanceof KVCompressedBytes) {
+			return ((KVCompressedBytes) obj).length();
+		}
+		try {
+			return KVBytes.toBytes(obj).length;
+		} catch (KVException e) {
+			return 0;
+		}
+	}
+
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;			// unpaired; encoded as '?'
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Bounded cache whose entries expire
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache whose entries are dropped once their expiry time passes. Holds at
+ * most maxSize entries and drops the least recently used one beyond that.
+ * Methods are synchronized; it is meant for small side caches, not for the
+ * main cache in front of the slaves.
+ */
+public class KVExpiringCache<K extends Serializable, V> {
+	private static class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final long ttlMillis;
+	private final LinkedHashMap<K, Entry<V>> entries;
+
+	/**
+	 * @param maxSize the maximum number of entries
+	 * @param ttlMillis lifetime of an entry added by put(key, value)
+	 */
+	public KVExpiringCache(final int maxSize, long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the value, or null if the key is not cached or has expired
+	 */
+	public synchronized V get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= entry.expiresAt) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Adds or replaces an entry that lives for ttlMillis from now.
+	 */
+	public void put(K key, V value) {
+		put(key, value, System.currentTimeMillis() + ttlMillis);
+	}
+
+	/**
+	 * Adds or replaces an entry that lives until expiresAt (in
+	 * System.currentTimeMillis() time); an expiry in the past is ignored.
+	 */
+	public synchronized void put(K key, V value, long expiresAt) {
+		if (expiresAt <= System.currentTimeMillis()) {
+			return;
+		}
+		entries.put(key, new Entry<V>(value, expiresAt));
+	}
+
+	public synchronized void del(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
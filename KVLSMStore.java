@@ -0,0 +1,756 @@
+/**
+ * LSM-tree storage engine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-optimized KeyValue store for data sets larger than the heap.
+ * 
+ * Writes go to a write-ahead log and a concurrent sorted memtable. When the
+ * memtable fills up it is frozen and a background thread flushes it to an
+ * immutable sorted table (KVSSTable). Another background thread merges the
+ * tables into one once there are too many of them. Reads check the memtable,
+ * the frozen memtable and then the tables from newest to oldest; each table's
+ * in-memory Bloom filter is checked first, so most tables that do not hold
+ * the key are skipped without disk I/O.
+ * 
+ * The MANIFEST file lists the live tables, newest first; it is replaced
+ * atomically after every flush and compaction, so a crash never exposes a
+ * half-written set of tables.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class KVLSMStore<K extends Serializable, V extends Serializable> implements KVPersistentStore<K, V> {
+	public static final long DEFAULT_MEMTABLE_SIZE = 4L * 1024 * 1024;
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+	public static final double DEFAULT_BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+	private static final String TABLE_PREFIX = "table-";
+	private static final String TABLE_SUFFIX = ".sst";
+	private static final String WAL_PREFIX = "wal-";
+	private static final String WAL_SUFFIX = ".log";
+	private static final String MANIFEST = "MANIFEST";
+	private static final int WAL_HEADER_SIZE = 12;
+	// Rough per-entry overhead of a skip list node, used to size the memtable
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return KVBytes.compare(a, b);
+		}
+	};
+
+	private final File directory;
+	private final long memtableSize;
+	private final int compactionThreshold;
+	private volatile boolean syncWrites = false;
+	private volatile boolean closed = false;
+	private volatile double bloomFalsePositiveRate = DEFAULT_BLOOM_FALSE_POSITIVE_RATE;
+
+	// Bloom filter metrics, counted per table probed
+	private final AtomicLong bloomNegatives = new AtomicLong();
+	private final AtomicLong bloomPositives = new AtomicLong();
+	private final AtomicLong bloomFalsePositives = new AtomicLong();
+
+	private volatile ConcurrentSkipListMap<byte[], byte[]> memtable = newMemtable();
+	private volatile ConcurrentSkipListMap<byte[], byte[]> frozen = null;
+	private final AtomicLong memtableBytes = new AtomicLong();
+	private FileChannel wal = null;
+	private File walFile = null;
+	private File frozenWalFile = null;
+
+	// Newest first; replaced wholesale under tablesLock
+	private volatile List<KVSSTable> tables = Collections.emptyList();
+	private final Object tablesLock = new Object();
+	private long nextFileId = 0;
+
+	// Serializes writers and the memtable hand-off
+	private final Lock write = new ReentrantLock();
+	private final Condition flushed = write.newCondition();
+	private final Condition frozenReady = write.newCondition();
+	// Table files are only closed while this is held exclusively
+	private final ReentrantReadWriteLock filesLock = new ReentrantReadWriteLock();
+
+	private final Thread flusher;
+	private final Thread compactor;
+
+	/**
+	 * @param directory where the tables and logs live; created if missing
+	 * @throws KVException if the existing files cannot be read
+	 */
+	public KVLSMStore(String directory) throws KVException {
+		this(directory, DEFAULT_MEMTABLE_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+	}
+
+	/**
+	 * @param directory where the tables and logs live; created if missing
+	 * @param memtableSize approximate bytes buffered in memory before a flush
+	 * @param compactionThreshold number of tables that triggers a merge
+	 * @throws KVException if the existing files cannot be read
+	 */
+	public KVLSMStore(String directory, long memtableSize, int compactionThreshold) throws KVException {
+		this.directory = new File(directory);
+		this.memtableSize = memtableSize;
+		this.compactionThreshold = Math.max(2, compactionThreshold);
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw ioError();
+		}
+		try {
+			recover();
+		} catch (IOException e) {
+			throw ioError();
+		}
+
+		flusher = new Thread("KVLSMStore-flusher") {
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+
+		compactor = new Thread("KVLSMStore-compactor") {
+			public void run() {
+				compactLoop();
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Force every write-ahead log append to stable storage before put/del
+	 * return. Without it the WAL only survives a process crash, not an OS
+	 * crash, and the slave falls back on replaying its TPCLog.
+	 */
+	@Override
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	@Override
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = KVBytes.toBytes(key);
+		byte[] valueBytes = KVBytes.toBytes(value);
+		boolean existed = lookup(keyBytes) != null;
+		write(keyBytes, valueBytes);
+		return existed;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(K key) throws KVException {
+		byte[] value = lookup(KVBytes.toBytes(key));
+		return (value == null) ? null : (V) KVBytes.fromBytes(value);
+	}
+
+	@Override
+	public void del(K key) throws KVException {
+		write(KVBytes.toBytes(key), KVSSTable.TOMBSTONE);
+	}
+
+	@Override
+	public void close() throws KVException {
+		closed = true;
+		// Let a running flush or compaction finish before its tables are closed
+		write.lock();
+		try {
+			frozenReady.signalAll();
+		} finally {
+			write.unlock();
+		}
+		synchronized (tablesLock) {
+			tablesLock.notifyAll();
+		}
+		try {
+			flusher.join();
+			compactor.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		write.lock();
+		filesLock.writeLock().lock();
+		try {
+			wal.force(false);
+			wal.close();
+			for (KVSSTable table : tables) {
+				table.close();
+			}
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			filesLock.writeLock().unlock();
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Target false-positive rate of the Bloom filters of tables written from
+	 * now on. Existing tables keep their filters until they are compacted.
+	 * @throws IllegalArgumentException unless 0 < rate < 1
+	 */
+	public void setBloomFalsePositiveRate(double rate) {
+		if (!(rate > 0 && rate < 1)) {
+			throw new IllegalArgumentException("Bloom false-positive rate must be between 0 and 1: " + rate);
+		}
+		this.bloomFalsePositiveRate = rate;
+	}
+
+	public double getBloomFalsePositiveRate() {
+		return bloomFalsePositiveRate;
+	}
+
+	/**
+	 * Table probes answered by a Bloom filter without disk I/O
+	 */
+	public long getBloomNegatives() {
+		return bloomNegatives.get();
+	}
+
+	/**
+	 * Table probes the Bloom filter let through that found nothing
+	 */
+	public long getBloomFalsePositives() {
+		return bloomFalsePositives.get();
+	}
+
+	/**
+	 * False-positive rate observed so far: false positives over all probes for absent keys
+	 */
+	public double getObservedBloomFalsePositiveRate() {
+		long falsePositives = bloomFalsePositives.get();
+		long absent = falsePositives + bloomNegatives.get();
+		return (absent == 0) ? 0.0 : (double) falsePositives / absent;
+	}
+
+	/**
+	 * Memory held by the Bloom filters of the live tables
+	 */
+	public long getBloomSizeInBytes() {
+		long size = 0;
+		for (KVSSTable table : tables) {
+			size += table.bloomSizeInBytes();
+		}
+		return size;
+	}
+
+	public void printStats() {
+		System.out.println("====================== KVLSMStore stats =====================");
+		System.out.println("tables: " + getTableCount() + ", memtable bytes: " + getMemtableBytes());
+		System.out.println("bloom filters: " + getBloomSizeInBytes() + " bytes, target fp rate " + bloomFalsePositiveRate
+				+ ", observed fp rate " + getObservedBloomFalsePositiveRate());
+		System.out.println("bloom probes: " + bloomNegatives.get() + " negative, " + bloomPositives.get()
+				+ " positive, " + bloomFalsePositives.get() + " false positive");
+		System.out.println("=====================================================");
+	}
+
+	/**
+	 * Number of tables currently on disk
+	 */
+	public int getTableCount() {
+		return tables.size();
+	}
+
+	/**
+	 * Approximate bytes held by the active memtable
+	 */
+	public long getMemtableBytes() {
+		return memtableBytes.get();
+	}
+
+	/**
+	 * @return the live encoded value, or null if the key is absent or deleted
+	 */
+	private byte[] lookup(byte[] key) throws KVException {
+		byte[] value = memtable.get(key);
+		if (value == null) {
+			ConcurrentSkipListMap<byte[], byte[]> frozenTable = frozen;
+			if (frozenTable != null) {
+				value = frozenTable.get(key);
+			}
+		}
+		if (value == null) {
+			filesLock.readLock().lock();
+			try {
+				for (KVSSTable table : tables) {
+					if (!table.mightContain(key)) {
+						bloomNegatives.incrementAndGet();
+						continue;
+					}
+					bloomPositives.incrementAndGet();
+					value = table.get(key);
+					if (value != null) {
+						break;
+					}
+					bloomFalsePositives.incrementAndGet();
+				}
+			} catch (IOException e) {
+				throw ioError();
+			} finally {
+				filesLock.readLock().unlock();
+			}
+		}
+		return (value == KVSSTable.TOMBSTONE) ? null : value;
+	}
+
+	private void write(byte[] key, byte[] value) throws KVException {
+		write.lock();
+		try {
+			// Back-pressure: only one memtable may be waiting to be flushed
+			while (frozen != null && memtableBytes.get() >= memtableSize) {
+				flushed.awaitUninterruptibly();
+			}
+			appendToWal(key, value);
+			memtable.put(key, value);
+			if (memtableBytes.addAndGet(key.length + value.length + ENTRY_OVERHEAD) >= memtableSize && frozen == null) {
+				freeze();
+			}
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			write.unlock();
+		}
+	}
+
+	// Called with the write lock held
+	private void freeze() throws IOException {
+		frozen = memtable;
+		frozenWalFile = walFile;
+		wal.close();
+		openWal();
+		memtable = newMemtable();
+		memtableBytes.set(0);
+		frozenReady.signal();
+	}
+
+	private void appendToWal(byte[] key, byte[] value) throws IOException {
+		int valueLength = (value == KVSSTable.TOMBSTONE) ? -1 : value.length;
+		ByteBuffer record = ByteBuffer.allocate(WAL_HEADER_SIZE + key.length + Math.max(valueLength, 0));
+		record.putInt(0);
+		record.putInt(key.length);
+		record.putInt(valueLength);
+		record.put(key);
+		if (valueLength >= 0) {
+			record.put(value);
+		}
+		record.putInt(0, checksum(record.array(), 4, record.capacity() - 4));
+		record.flip();
+		while (record.hasRemaining()) {
+			wal.write(record);
+		}
+		if (syncWrites) {
+			wal.force(false);
+		}
+	}
+
+	private void flushLoop() {
+		while (!closed) {
+			ConcurrentSkipListMap<byte[], byte[]> toFlush;
+			File toDelete;
+			write.lock();
+			try {
+				while (frozen == null && !closed) {
+					frozenReady.awaitUninterruptibly();
+				}
+				if (closed) {
+					return;
+				}
+				toFlush = frozen;
+				toDelete = frozenWalFile;
+			} finally {
+				write.unlock();
+			}
+
+			try {
+				flush(toFlush);
+				toDelete.delete();
+			} catch (IOException e) {
+				System.err.println("KVLSMStore: flush failed, retrying: " + e.getMessage());
+				sleepQuietly(1000);
+				continue;
+			}
+
+			write.lock();
+			try {
+				frozen = null;
+				frozenWalFile = null;
+				flushed.signalAll();
+			} finally {
+				write.unlock();
+			}
+			synchronized (tablesLock) {
+				tablesLock.notifyAll();
+			}
+		}
+	}
+
+	private void flush(ConcurrentSkipListMap<byte[], byte[]> entries) throws IOException {
+		synchronized (tablesLock) {
+			long id = nextFileId++;
+			KVSSTable table = KVSSTable.write(id, tableFile(id), entries.entrySet().iterator(), tables.isEmpty(),
+					entries.size(), bloomFalsePositiveRate);
+			List<KVSSTable> updated = new ArrayList<KVSSTable>(tables.size() + 1);
+			updated.add(table);
+			updated.addAll(tables);
+			writeManifest(updated);
+			tables = Collections.unmodifiableList(updated);
+		}
+	}
+
+	private void compactLoop() {
+		while (!closed) {
+			List<KVSSTable> snapshot;
+			synchronized (tablesLock) {
+				while (tables.size() < compactionThreshold && !closed) {
+					try {
+						tablesLock.wait();
+					} catch (InterruptedException e) {
+						// closing
+					}
+				}
+				if (closed) {
+					return;
+				}
+				snapshot = tables;
+			}
+			try {
+				compact(snapshot);
+			} catch (IOException e) {
+				System.err.println("KVLSMStore: compaction failed, retrying: " + e.getMessage());
+				sleepQuietly(1000);
+			}
+		}
+	}
+
+	/**
+	 * Merge every table in snapshot into one. Newer tables flushed in the
+	 * meantime are left alone and stay in front of the merged table.
+	 */
+	private void compact(List<KVSSTable> snapshot) throws IOException {
+		long id;
+		synchronized (tablesLock) {
+			id = nextFileId++;
+		}
+		int expectedEntries = 0;
+		for (KVSSTable table : snapshot) {
+			expectedEntries += table.entryCount();
+		}
+		MergeIterator merged = new MergeIterator(snapshot);
+		KVSSTable output;
+		try {
+			// Every table is part of the merge, so deletions have nothing left to hide
+			output = KVSSTable.write(id, tableFile(id), merged, true, expectedEntries, bloomFalsePositiveRate);
+		} finally {
+			merged.close();
+		}
+
+		synchronized (tablesLock) {
+			Set<KVSSTable> replaced = new HashSet<KVSSTable>(snapshot);
+			List<KVSSTable> updated = new ArrayList<KVSSTable>();
+			for (KVSSTable table : tables) {
+				if (!replaced.contains(table)) {
+					updated.add(table);
+				}
+			}
+			updated.add(output);
+			writeManifest(updated);
+			tables = Collections.unmodifiableList(updated);
+		}
+
+		filesLock.writeLock().lock();
+		try {
+			for (KVSSTable table : snapshot) {
+				table.close();
+				table.file.delete();
+			}
+		} finally {
+			filesLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Merges table cursors in key order; for equal keys the newest table wins
+	 */
+	private static class MergeIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		private final PriorityQueue<KVSSTable.Cursor> heads;
+		private final List<KVSSTable.Cursor> cursors = new ArrayList<KVSSTable.Cursor>();
+		private Map.Entry<byte[], byte[]> next = null;
+
+		MergeIterator(final List<KVSSTable> newestFirst) throws IOException {
+			heads = new PriorityQueue<KVSSTable.Cursor>(Math.max(1, newestFirst.size()), new Comparator<KVSSTable.Cursor>() {
+				public int compare(KVSSTable.Cursor c1, KVSSTable.Cursor c2) {
+					int cmp = KVBytes.compare(c1.key, c2.key);
+					if (cmp != 0) {
+						return cmp;
+					}
+					return newestFirst.indexOf(c1.table()) - newestFirst.indexOf(c2.table());
+				}
+			});
+			for (KVSSTable table : newestFirst) {
+				KVSSTable.Cursor cursor = table.cursor();
+				cursors.add(cursor);
+				if (cursor.advance()) {
+					heads.add(cursor);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			if (next == null && !heads.isEmpty()) {
+				try {
+					KVSSTable.Cursor winner = heads.poll();
+					next = new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(winner.key, winner.value);
+					advance(winner);
+					while (!heads.isEmpty() && KVBytes.compare(heads.peek().key, next.getKey()) == 0) {
+						advance(heads.poll());
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			return next != null;
+		}
+
+		public Map.Entry<byte[], byte[]> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<byte[], byte[]> entry = next;
+			next = null;
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void advance(KVSSTable.Cursor cursor) throws IOException {
+			if (cursor.advance()) {
+				heads.add(cursor);
+			}
+		}
+
+		void close() throws IOException {
+			for (KVSSTable.Cursor cursor : cursors) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Open the tables named in the MANIFEST, drop stray files and replay any
+	 * write-ahead logs into a fresh table.
+	 */
+	private void recover() throws IOException {
+		List<KVSSTable> live = new ArrayList<KVSSTable>();
+		Set<Long> liveIds = new HashSet<Long>();
+		File manifest = new File(directory, MANIFEST);
+		if (manifest.exists()) {
+			BufferedReader reader = new BufferedReader(new FileReader(manifest));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().length() == 0) {
+						continue;
+					}
+					long id = Long.parseLong(line.trim());
+					live.add(KVSSTable.open(id, tableFile(id)));
+					liveIds.add(id);
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		List<Long> walIds = new ArrayList<Long>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				long id = parseId(file.getName(), TABLE_PREFIX, TABLE_SUFFIX);
+				if (id >= 0) {
+					nextFileId = Math.max(nextFileId, id + 1);
+					if (!liveIds.contains(id)) {
+						file.delete();
+					}
+				}
+				id = parseId(file.getName(), WAL_PREFIX, WAL_SUFFIX);
+				if (id >= 0) {
+					nextFileId = Math.max(nextFileId, id + 1);
+					walIds.add(id);
+				}
+			}
+		}
+		Collections.sort(walIds);
+		tables = Collections.unmodifiableList(live);
+
+		ConcurrentSkipListMap<byte[], byte[]> replayed = newMemtable();
+		for (Long id : walIds) {
+			replayWal(walFile(id), replayed);
+		}
+		if (!replayed.isEmpty()) {
+			flush(replayed);
+		}
+		for (Long id : walIds) {
+			walFile(id).delete();
+		}
+		openWal();
+	}
+
+	private void replayWal(File file, ConcurrentSkipListMap<byte[], byte[]> into) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int crc = in.readInt();
+				int keyLength = in.readInt();
+				int valueLength = in.readInt();
+				if (keyLength < 0 || valueLength < -1) {
+					break;
+				}
+				byte[] record = new byte[WAL_HEADER_SIZE + keyLength + Math.max(valueLength, 0)];
+				ByteBuffer.wrap(record).putInt(crc).putInt(keyLength).putInt(valueLength);
+				in.readFully(record, WAL_HEADER_SIZE, record.length - WAL_HEADER_SIZE);
+				if (crc != checksum(record, 4, record.length - 4)) {
+					break;
+				}
+				byte[] key = new byte[keyLength];
+				System.arraycopy(record, WAL_HEADER_SIZE, key, 0, keyLength);
+				byte[] value = KVSSTable.TOMBSTONE;
+				if (valueLength >= 0) {
+					value = new byte[valueLength];
+					System.arraycopy(record, WAL_HEADER_SIZE + keyLength, value, 0, valueLength);
+				}
+				into.put(key, value);
+			}
+		} catch (EOFException e) {
+			// torn tail from a crash; everything before it was replayed
+		} finally {
+			in.close();
+		}
+	}
+
+	private void openWal() throws IOException {
+		walFile = walFile(nextFileId++);
+		wal = new RandomAccessFile(walFile, "rw").getChannel();
+	}
+
+	private void writeManifest(List<KVSSTable> newestFirst) throws IOException {
+		File tmp = new File(directory, MANIFEST + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (KVSSTable table : newestFirst) {
+				sb.append(table.id).append('\n');
+			}
+			out.write(sb.toString().getBytes(KVBytes.UTF8));
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(directory, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private File tableFile(long id) {
+		return new File(directory, TABLE_PREFIX + id + TABLE_SUFFIX);
+	}
+
+	private File walFile(long id) {
+		return new File(directory, WAL_PREFIX + id + WAL_SUFFIX);
+	}
+
+	private static long parseId(String name, String prefix, String suffix) {
+		if (!name.startsWith(prefix) || !name.endsWith(suffix)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static ConcurrentSkipListMap<byte[], byte[]> newMemtable() {
+		return new ConcurrentSkipListMap<byte[], byte[]>(KEY_ORDER);
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			// closing
+		}
+	}
+
+	private static KVException ioError() {
+		return new KVException(new KVMessage("resp", "IO Error"));
+	}
+}
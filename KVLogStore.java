@@ -0,0 +1,573 @@
+/**
+ * Log-structured persistent storage engine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Disk-backed KeyValue store built from append-only segment files. Every put
+ * and del is a single sequential append to the active segment, and an in-memory
+ * hash index maps each live key to the location of its latest record, so a get
+ * is a single positioned read.
+ * 
+ * Each record is laid out as
+ *   [crc:int][seq:long][keyLength:int][valueLength:int][key][value]
+ * where a valueLength of -1 marks a deletion. The sequence number lets recovery
+ * and compaction order records without relying on which file they are in.
+ * 
+ * Segments that are no longer written to are merged in the background once
+ * enough of their bytes belong to overwritten or deleted keys.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class KVLogStore<K extends Serializable, V extends Serializable> implements KVPersistentStore<K, V> {
+	public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_SIZE = 20;
+	private static final int TOMBSTONE = -1;
+
+	/**
+	 * Location of the latest record for a key
+	 */
+	private static class Location {
+		final long segmentId;
+		final long offset;
+		final int size;
+		final long seq;
+
+		Location(long segmentId, long offset, int size, long seq) {
+			this.segmentId = segmentId;
+			this.offset = offset;
+			this.size = size;
+			this.seq = seq;
+		}
+	}
+
+	/**
+	 * One append-only file of records
+	 */
+	private static class Segment {
+		final long id;
+		final File file;
+		final FileChannel channel;
+		volatile long size;
+		// Highest sequence number of any record in the file
+		volatile long maxSeq = -1;
+		// Bytes of the file known to be on stable storage; guarded by the segment
+		long synced = 0;
+
+		Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+
+		long append(ByteBuffer record, long seq) throws IOException {
+			long offset = size;
+			long position = offset;
+			while (record.hasRemaining()) {
+				position += channel.write(record, position);
+			}
+			size = position;
+			maxSeq = Math.max(maxSeq, seq);
+			return offset;
+		}
+
+		/**
+		 * Forces the file up to at least position. Appends that land while
+		 * one force runs are covered by the next, so concurrent writers
+		 * share forces instead of queueing one each.
+		 */
+		synchronized void syncTo(long position) throws IOException {
+			if (synced >= position) {
+				return;
+			}
+			long target = size;
+			channel.force(false);
+			synced = target;
+		}
+
+		void read(ByteBuffer dst, long position) throws IOException {
+			while (dst.hasRemaining()) {
+				int n = channel.read(dst, position);
+				if (n < 0) {
+					throw new IOException("Unexpected end of segment " + file);
+				}
+				position += n;
+			}
+		}
+	}
+
+	private final File directory;
+	private final long maxSegmentSize;
+	private volatile boolean syncWrites = false;
+
+	private final ConcurrentHashMap<K, Location> index = new ConcurrentHashMap<K, Location>();
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+	private Segment active = null;
+	private long nextSegmentId = 0;
+	private long nextSeq = 0;
+
+	// Bytes held by records that are no longer reachable from the index
+	private long deadBytes = 0;
+	private long totalBytes = 0;
+
+	// Serializes appends; readers never take it
+	private final Lock append = new ReentrantLock();
+	// Readers share it; held exclusively only while compacted segments are dropped
+	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private final Lock read = readWriteLock.readLock();
+	private final Lock write = readWriteLock.writeLock();
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+	/**
+	 * Opens the store in directory, recovering any segments already there
+	 * @param directory where segment files live; created if missing
+	 * @throws KVException if the existing segments cannot be read
+	 */
+	public KVLogStore(String directory) throws KVException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory where segment files live; created if missing
+	 * @param maxSegmentSize size in bytes after which a new segment is started
+	 * @throws KVException if the existing segments cannot be read
+	 */
+	public KVLogStore(String directory, long maxSegmentSize) throws KVException {
+		this.directory = new File(directory);
+		this.maxSegmentSize = maxSegmentSize;
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw ioError();
+		}
+		try {
+			recover();
+		} catch (IOException e) {
+			throw ioError();
+		}
+	}
+
+	/**
+	 * Force every append to stable storage before put/del return; writers
+	 * that append while a force runs share the next one. Off by default
+	 * here (SlaveServer turns it on): a KeyServer over an unsynced store
+	 * replays the TPCLog's commits on restart to recover appends lost from
+	 * the page cache.
+	 */
+	@Override
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	@Override
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		return append(key, KVBytes.toBytes(value));
+	}
+
+	@Override
+	public V get(K key) throws KVException {
+		read.lock();
+		try {
+			Location loc = index.get(key);
+			if (loc == null) {
+				return null;
+			}
+			ByteBuffer record = ByteBuffer.allocate(loc.size);
+			segments.get(loc.segmentId).read(record, loc.offset);
+			record.flip();
+			return decodeValue(record);
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			read.unlock();
+		}
+	}
+
+	@Override
+	public void del(K key) throws KVException {
+		if (index.containsKey(key)) {
+			append(key, null);
+		}
+	}
+
+	@Override
+	public void close() throws KVException {
+		append.lock();
+		write.lock();
+		try {
+			for (Segment segment : segments.values()) {
+				segment.channel.force(false);
+				segment.channel.close();
+			}
+			segments.clear();
+			index.clear();
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			write.unlock();
+			append.unlock();
+		}
+	}
+
+	/**
+	 * Number of live keys in the store
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Rewrite the live records of every sealed segment into fresh segments
+	 * and drop the old files. Reads and writes proceed while records are
+	 * copied; only the final removal of the old files excludes readers.
+	 * @throws KVException if the segments cannot be rewritten
+	 */
+	public void compact() throws KVException {
+		if (!compacting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			doCompact();
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	private boolean append(K key, byte[] value) throws KVException {
+		byte[] keyBytes = KVBytes.toBytes(key);
+		Segment written;
+		long end;
+		boolean replaced;
+		append.lock();
+		read.lock();
+		try {
+			long seq = nextSeq++;
+			ByteBuffer record = encodeRecord(seq, keyBytes, value);
+			int size = record.remaining();
+			if (active.size > 0 && active.size + size > maxSegmentSize) {
+				roll();
+			}
+			long offset = active.append(record, seq);
+			written = active;
+			end = offset + size;
+			totalBytes += size;
+
+			Location previous;
+			if (value == null) {
+				previous = index.remove(key);
+				deadBytes += size;
+			} else {
+				previous = index.put(key, new Location(active.id, offset, size, seq));
+			}
+			if (previous != null) {
+				deadBytes += previous.size;
+			}
+			replaced = (previous != null);
+		} catch (IOException e) {
+			throw ioError();
+		} finally {
+			read.unlock();
+			append.unlock();
+		}
+		if (syncWrites) {
+			// Outside the append lock, so that writers arriving meanwhile share the force
+			try {
+				written.syncTo(end);
+			} catch (ClosedChannelException e) {
+				// Compacted away; compaction forced the copies of its records
+			} catch (IOException e) {
+				throw ioError();
+			}
+		}
+		return replaced;
+	}
+
+	// Called with the append lock held
+	private void roll() throws IOException {
+		active = openSegment(nextSegmentId++);
+		if (deadBytes > maxSegmentSize && deadBytes * 2 > totalBytes && !compacting.get()) {
+			Thread compactor = new Thread("KVLogStore-compactor") {
+				public void run() {
+					try {
+						compact();
+					} catch (KVException e) {
+						System.err.println("KVLogStore: compaction failed: " + e.getMsg().getMsg());
+					}
+				}
+			};
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+	}
+
+	private void doCompact() throws IOException {
+		List<Segment> sealed = new ArrayList<Segment>();
+		long activeId;
+		append.lock();
+		try {
+			activeId = active.id;
+		} finally {
+			append.unlock();
+		}
+		for (Segment segment : segments.headMap(activeId).values()) {
+			sealed.add(segment);
+		}
+		if (sealed.isEmpty()) {
+			return;
+		}
+		long lastSealed = sealed.get(sealed.size() - 1).id;
+
+		// Copy every record the index still points at into new segments
+		List<Segment> outputs = new ArrayList<Segment>();
+		Segment output = null;
+		long copied = 0;
+		Map<K, Location[]> moved = new HashMap<K, Location[]>();
+		for (Map.Entry<K, Location> entry : index.entrySet()) {
+			Location loc = entry.getValue();
+			if (loc.segmentId > lastSealed) {
+				continue;
+			}
+			ByteBuffer record = ByteBuffer.allocate(loc.size);
+			segments.get(loc.segmentId).read(record, loc.offset);
+			record.flip();
+			if (output == null || output.size + loc.size > maxSegmentSize) {
+				output = newCompactionSegment();
+				outputs.add(output);
+			}
+			long offset = output.append(record, loc.seq);
+			copied += loc.size;
+			moved.put(entry.getKey(), new Location[] { loc, new Location(output.id, offset, loc.size, loc.seq) });
+		}
+		for (Segment segment : outputs) {
+			segment.channel.force(false);
+		}
+
+		// Repoint keys that were not written again while we were copying
+		for (Map.Entry<K, Location[]> entry : moved.entrySet()) {
+			index.replace(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+		}
+
+		// Drop old files in order of their newest record, so a deletion is
+		// never removed from disk before the value it hides
+		Collections.sort(sealed, new Comparator<Segment>() {
+			public int compare(Segment s1, Segment s2) {
+				return (s1.maxSeq < s2.maxSeq) ? -1 : ((s1.maxSeq == s2.maxSeq) ? 0 : 1);
+			}
+		});
+		long reclaimed = 0;
+		write.lock();
+		try {
+			for (Segment segment : sealed) {
+				reclaimed += segment.size;
+				segments.remove(segment.id);
+				segment.channel.close();
+				segment.file.delete();
+			}
+		} finally {
+			write.unlock();
+		}
+		append.lock();
+		try {
+			totalBytes += copied - reclaimed;
+			deadBytes = Math.max(0, deadBytes - (reclaimed - copied));
+		} finally {
+			append.unlock();
+		}
+	}
+
+	private Segment newCompactionSegment() throws IOException {
+		append.lock();
+		try {
+			return openSegment(nextSegmentId++);
+		} finally {
+			append.unlock();
+		}
+	}
+
+	private Segment openSegment(long id) throws IOException {
+		Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Rebuild the index by scanning every segment. A record with a bad
+	 * checksum or a short tail ends its segment; the rest is truncated.
+	 */
+	@SuppressWarnings("unchecked")
+	private void recover() throws IOException, KVException {
+		File[] files = directory.listFiles();
+		List<Long> ids = new ArrayList<Long>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// not one of ours
+					}
+				}
+			}
+		}
+		Long[] sorted = ids.toArray(new Long[ids.size()]);
+		Arrays.sort(sorted);
+
+		Map<K, Long> deleted = new HashMap<K, Long>();
+		long liveBytes = 0;
+		for (Long id : sorted) {
+			Segment segment = openSegment(id);
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+			long position = 0;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (position + HEADER_SIZE <= segment.size) {
+				header.clear();
+				segment.read(header, position);
+				header.flip();
+				int crc = header.getInt();
+				long seq = header.getLong();
+				int keyLength = header.getInt();
+				int valueLength = header.getInt();
+				if (keyLength < 0 || valueLength < TOMBSTONE) {
+					break;
+				}
+				int size = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+				if (position + size > segment.size) {
+					break;
+				}
+				ByteBuffer record = ByteBuffer.allocate(size);
+				segment.read(record, position);
+				if (crc != checksum(record.array(), 4, size - 4)) {
+					break;
+				}
+				byte[] keyBytes = Arrays.copyOfRange(record.array(), HEADER_SIZE, HEADER_SIZE + keyLength);
+				K key = (K) KVBytes.fromBytes(keyBytes);
+
+				Location current = index.get(key);
+				Long deletedSeq = deleted.get(key);
+				long latest = Math.max(current == null ? -1 : current.seq, deletedSeq == null ? -1 : deletedSeq);
+				if (seq > latest) {
+					if (valueLength == TOMBSTONE) {
+						index.remove(key);
+						deleted.put(key, seq);
+					} else {
+						index.put(key, new Location(id, position, size, seq));
+						deleted.remove(key);
+					}
+				}
+				segment.maxSeq = Math.max(segment.maxSeq, seq);
+				nextSeq = Math.max(nextSeq, seq + 1);
+				position += size;
+			}
+			if (position < segment.size) {
+				System.err.println("KVLogStore: truncating " + (segment.size - position) + " unreadable bytes from " + segment.file);
+				segment.channel.truncate(position);
+				segment.size = position;
+			}
+			totalBytes += segment.size;
+		}
+		Iterator<Location> live = index.values().iterator();
+		while (live.hasNext()) {
+			liveBytes += live.next().size;
+		}
+		deadBytes = totalBytes - liveBytes;
+		active = openSegment(nextSegmentId++);
+	}
+
+	private static ByteBuffer encodeRecord(long seq, byte[] key, byte[] value) {
+		int valueLength = (value == null) ? TOMBSTONE : value.length;
+		int size = HEADER_SIZE + key.length + Math.max(valueLength, 0);
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.putInt(0);
+		record.putLong(seq);
+		record.putInt(key.length);
+		record.putInt(valueLength);
+		record.put(key);
+		if (value != null) {
+			record.put(value);
+		}
+		record.putInt(0, checksum(record.array(), 4, size - 4));
+		record.flip();
+		return record;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V decodeValue(ByteBuffer record) throws KVException {
+		int crc = record.getInt();
+		record.getLong();
+		int keyLength = record.getInt();
+		int valueLength = record.getInt();
+		if (crc != checksum(record.array(), 4, record.limit() - 4) || valueLength < 0) {
+			throw ioError();
+		}
+		byte[] value = Arrays.copyOfRange(record.array(), HEADER_SIZE + keyLength, HEADER_SIZE + keyLength + valueLength);
+		return (V) KVBytes.fromBytes(value);
+	}
+
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static KVException ioError() {
+		return new KVException(new KVMessage("resp", "IO Error"));
+	}
+}
@@ -31,15 +31,31 @@ package edu.berkeley.cs162;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.parsers.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -57,6 +73,24 @@ import org.xml.sax.SAXException;
  * This is the object that is used to generate messages the XML based messages 
  * for communication between clients and servers. Data is stored in a 
  * marshalled String format in this object.
+ * 
+ * Messages can also travel in a binary frame, which skips building and
+ * parsing a DOM:
+ * 
+ *   [0xB1][int bodyLength][byte typeCode]([type])[key][value][status][message][opId]
+ *   [int entryCount]([key][value][message] per entry)([long requestId])
+ * 
+ * where each bracketed string is an int byte count (-1 for null) followed by
+ * UTF-8 bytes, and the type string is only present when typeCode is 0 (a
+ * type not in TYPE_CODES). A value slot may instead hold raw bytes, written
+ * as -(2n + 2) followed by the n bytes, or -(2n + 3) when the client
+ * compressed them; see setValueBytes. Entries carry the keys of the
+ * multi-key requests (mgetreq, mputreq, mdelreq) and their per-key results.
+ * A request ID, when present, marks a message sent on a persistent
+ * connection (see KVConnection); the response carries the same ID so that
+ * it can be matched to its request. An XML document never starts with
+ * 0xB1, so receive() accepts either format on the same port, and a server
+ * answers in the format the request came in.
  */
 public class KVMessage implements Serializable {
 	private static final long serialVersionUID = 6473128480951955693L;
@@ -64,10 +98,91 @@ public class KVMessage implements Serializable {
 	private String msgType = null;
 	private String key = null;
 	private String value = null;
+	// Opaque value carried and stored as is, instead of value; null if none
+	private byte[] valueBytes = null;
+	// Whether valueBytes were compressed by the client
+	private boolean valueCompressed = false;
 	private String status = null;
 	private boolean statusSet;
 	private String message = null;
 	private String tpcOpId = null;
+	// Whether this message was received as a binary frame
+	private transient boolean binary = false;
+	// Tag matching a response to its request on a persistent connection; 0 if none
+	private transient long requestId = 0;
+	// Keys of a multi-key request or results of its response; null otherwise
+	private ArrayList<Entry> entries = null;
+	
+	/**
+	 * One key of a multi-key message, with its value (puts, get results)
+	 * or the error for that key (get results)
+	 */
+	public static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+		
+		private final String key;
+		private final String value;
+		private final byte[] valueBytes;
+		private final boolean compressed;
+		private final String message;
+		
+		/**
+		 * @param value the encoded String value, a byte[] raw value or
+		 *        KVCompressedBytes
+		 */
+		public Entry(String key, Serializable value, String message) {
+			this.key = key;
+			this.compressed = (value instanceof KVCompressedBytes);
+			if (compressed) {
+				this.valueBytes = ((KVCompressedBytes) value).getBytes();
+			} else {
+				this.valueBytes = (value instanceof byte[]) ? (byte[]) value : null;
+			}
+			this.value = (valueBytes == null) ? (String) value : null;
+			this.message = message;
+		}
+		
+		public String getKey() {
+			return key;
+		}
+		
+		public String getValue() {
+			return value;
+		}
+		
+		public byte[] getValueBytes() {
+			return valueBytes;
+		}
+		
+		/**
+		 * @return the value as servers store it: the raw or compressed bytes, if any, else the String
+		 */
+		public Serializable getPayload() {
+			return payload(value, valueBytes, compressed);
+		}
+		
+		public String getMsg() {
+			return message;
+		}
+	}
+	
+	/** First byte of a binary frame */
+	public static final int BINARY_MAGIC = 0xB1;
+	/** Largest binary frame body accepted */
+	public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+	// Message types with a one-byte code in binary frames; code = index + 1
+	private static final String[] TYPE_CODES = {
+		"getreq", "putreq", "delreq", "resp", "ready", "abort", "commit", "ack",
+		"register", "getEnKey", "invalidate", "mgetreq", "mputreq", "mdelreq" };
+	
+	// Creating a factory looks up the implementation on the classpath, so
+	// it is done once; creating readers and writers from it is thread-safe
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+	private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+	static {
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
 	
 	/*
 	 *  1) 2PC putreq/delreq
@@ -76,7 +191,7 @@ public class KVMessage implements Serializable {
 	public <K,V> KVMessage( String t, K k, V v, String m, String opId, boolean encode ) throws KVException{
 		msgType = t;
 		key = (String) (encode ? encodeObject(k) : k);
-		value = (String) (encode ? encodeObject(v) : v);
+		setPayload(encode ? encodeObject(v) : v);
 		message = m;
 		statusSet = false;
 		tpcOpId = opId;
@@ -141,7 +256,7 @@ public class KVMessage implements Serializable {
 		}
 		msgType = t;
 		key = (String) (encode ? encodeObject(k) : k);
-		value = (String) (encode ? encodeObject(v) : v);
+		setPayload(encode ? encodeObject(v) : v);
 		statusSet = false;
 	}
 	
@@ -162,8 +277,119 @@ public class KVMessage implements Serializable {
 	    public void close() {} // ignore close
 	}
 	
-	// 
+	/**
+	 * Parses an XML message with a streaming reader. Only the first element
+	 * of each name counts, as with the DOM parser this replaced.
+	 */
 	public KVMessage(InputStream input) throws KVException {
+		XMLStreamReader reader = null;
+		try {
+			reader = XML_INPUT_FACTORY.createXMLStreamReader(new NoCloseInputStream(input));
+			boolean seenRoot = false;
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				String tag = reader.getLocalName();
+				if (!seenRoot) {
+					seenRoot = true;
+					if (tag.equals("KVMessage")) {
+						String type = reader.getAttributeValue(null, "type");
+						msgType = (type == null) ? "" : type;
+					}
+					continue;
+				}
+				if (tag.equals("Key") && key == null) {
+					key = elementText(reader);
+				} else if (tag.equals("Value") && value == null && valueBytes == null) {
+					value = elementText(reader);
+				} else if (tag.equals("ValueBytes") && value == null && valueBytes == null) {
+					setPayload(elementPayload(reader));
+				} else if (tag.equals("TPCOpId") && tpcOpId == null) {
+					tpcOpId = elementText(reader);
+				} else if (tag.equals("Status") && !statusSet) {
+					status = elementText(reader);
+					statusSet = (status != null);
+				} else if (tag.equals("Message") && message == null) {
+					message = elementText(reader);
+				} else if (tag.equals("Entries") && entries == null) {
+					entries = readEntries(reader);
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+				}
+			}
+		}
+	}
+	
+	// Reads the Entry elements up to the end of the current Entries element
+	private static ArrayList<Entry> readEntries(XMLStreamReader reader) throws XMLStreamException {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		String entryKey = null, entryMessage = null;
+		Serializable entryValue = null;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String tag = reader.getLocalName();
+				if (tag.equals("Entry")) {
+					entryKey = entryMessage = null;
+					entryValue = null;
+				} else if (tag.equals("Key")) {
+					entryKey = elementText(reader);
+				} else if (tag.equals("Value")) {
+					entryValue = elementText(reader);
+				} else if (tag.equals("ValueBytes")) {
+					entryValue = elementPayload(reader);
+				} else if (tag.equals("Message")) {
+					entryMessage = elementText(reader);
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				String tag = reader.getLocalName();
+				if (tag.equals("Entry")) {
+					entries.add(new Entry(entryKey, entryValue, entryMessage));
+				} else if (tag.equals("Entries")) {
+					break;
+				}
+			}
+		}
+		return entries;
+	}
+	
+	// Text of the current element; null when empty, like a DOM element without a text node
+	private static String elementText(XMLStreamReader reader) throws XMLStreamException {
+		String text = reader.getElementText();
+		return text.isEmpty() ? null : text;
+	}
+	
+	// A ValueBytes element: Base64 bytes, compressed if its compressed attribute is true
+	private static Serializable elementPayload(XMLStreamReader reader) throws XMLStreamException {
+		boolean compressed = "true".equals(reader.getAttributeValue(null, "compressed"));
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(reader.getElementText().trim());
+		} catch (IllegalArgumentException e) {
+			throw new XMLStreamException("ValueBytes is not valid Base64");
+		}
+		return compressed ? new KVCompressedBytes(bytes) : bytes;
+	}
+	
+	/**
+	 * Parses an XML message by building a DOM, the way all messages were
+	 * parsed before the streaming reader. Kept for KVMessageBenchmark.
+	 */
+	static KVMessage fromDOM(InputStream input) throws KVException {
+		KVMessage msg = new KVMessage((String) null);
+		msg.readDOM(input);
+		return msg;
+	}
+	
+	private void readDOM(InputStream input) throws KVException {
 
 		try{
 			DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
@@ -192,6 +418,131 @@ public class KVMessage implements Serializable {
 		}
 	}
 
+	/**
+	 * Reads one message in either format: a binary frame if the first byte is
+	 * BINARY_MAGIC, an XML document otherwise.
+	 */
+	public static KVMessage receive(InputStream input) throws KVException {
+		PushbackInputStream in = new PushbackInputStream(input, 1);
+		try {
+			int first = in.read();
+			if (first < 0) {
+				throw new KVException(new KVMessage("resp", "Network Error: Could not receive data"));
+			}
+			if (first != BINARY_MAGIC) {
+				in.unread(first);
+				return new KVMessage(in);
+			}
+			DataInputStream data = new DataInputStream(in);
+			int length = data.readInt();
+			if (length < 1 || length > MAX_FRAME_LENGTH) {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			byte[] body = new byte[length];
+			data.readFully(body);
+			return readBody(ByteBuffer.wrap(body));
+		} catch (EOFException e) {
+			throw new KVException(new KVMessage("resp", "Network Error: Could not receive data"));
+		} catch (IOException e) {
+			throw new KVException(new KVMessage("resp", "Network Error: Could not receive data"));
+		}
+	}
+
+	/**
+	 * Decodes the binary frame at the buffer's position, which must hold the
+	 * whole frame, and advances past it.
+	 */
+	public static KVMessage fromBinary(ByteBuffer buf) throws KVException {
+		try {
+			if ((buf.get() & 0xFF) != BINARY_MAGIC) {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			int length = buf.getInt();
+			if (length < 1 || length > buf.remaining()) {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			ByteBuffer body = buf.slice();
+			body.limit(length);
+			buf.position(buf.position() + length);
+			return readBody(body);
+		} catch (BufferUnderflowException e) {
+			throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+		}
+	}
+
+	private static KVMessage readBody(ByteBuffer body) throws KVException {
+		try {
+			int code = body.get() & 0xFF;
+			String type;
+			if (code == 0) {
+				type = readString(body);
+			} else if (code <= TYPE_CODES.length) {
+				type = TYPE_CODES[code - 1];
+			} else {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			KVMessage msg = new KVMessage(type);
+			msg.key = readString(body);
+			msg.setPayload(readPayload(body));
+			msg.status = readString(body);
+			msg.statusSet = (msg.status != null);
+			msg.message = readString(body);
+			msg.tpcOpId = readString(body);
+			int entryCount = body.getInt();
+			if (entryCount > body.remaining() / 12) {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			if (entryCount > 0) {
+				msg.entries = new ArrayList<Entry>(entryCount);
+				for (int i = 0; i < entryCount; i++) {
+					msg.entries.add(new Entry(readString(body), readPayload(body), readString(body)));
+				}
+			}
+			if (body.remaining() >= 8) {
+				msg.requestId = body.getLong();
+			}
+			msg.binary = true;
+			return msg;
+		} catch (BufferUnderflowException e) {
+			throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+		}
+	}
+
+	// A value slot: a String, or raw bytes when the count is -(2n + 2), compressed if -(2n + 3)
+	private static Serializable readPayload(ByteBuffer buf) throws KVException {
+		int count = buf.getInt();
+		if (count >= -1) {
+			buf.position(buf.position() - 4);
+			return readString(buf);
+		}
+		int length = -(count + 2) >>> 1;
+		if (length > buf.remaining()) {
+			throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+		}
+		byte[] bytes = new byte[length];
+		buf.get(bytes);
+		return ((count & 1) == 0) ? bytes : new KVCompressedBytes(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) throws KVException {
+		int length = buf.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > buf.remaining()) {
+			throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+		}
+		if (!buf.hasArray()) {
+			// Direct and read-only buffers have no array to decode in place
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			return new String(bytes, KVBytes.UTF8);
+		}
+		String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, KVBytes.UTF8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+
 	/*
 	 *  *Assumes that there is only one tag with the given tag name;
 	 *  Otherwise returns the value in the first tag
@@ -221,18 +572,98 @@ public class KVMessage implements Serializable {
 		return null;
     }	
 	
-	// Escapes a string to UTF-8 format
+	// Escapes XML markup characters in a single pass; returns s itself if there are none
 	private static String escape(String s){
-		return s.replaceAll("&","&amp;")
-                .replaceAll("<", "&lt;")
-                .replaceAll(">", "&gt;")
-                .replaceAll("\"", "&quot;")
-                .replaceAll("'", "&apos;");
+		StringBuilder sb = null;
+		int copied = 0;
+		for (int i = 0; i < s.length(); i++) {
+			String entity;
+			switch (s.charAt(i)) {
+			case '&':	entity = "&amp;";	break;
+			case '<':	entity = "&lt;";	break;
+			case '>':	entity = "&gt;";	break;
+			case '"':	entity = "&quot;";	break;
+			case '\'':	entity = "&apos;";	break;
+			default:	continue;
+			}
+			if (sb == null) {
+				sb = new StringBuilder(s.length() + 16);
+			}
+			sb.append(s, copied, i).append(entity);
+			copied = i + 1;
+		}
+		if (sb == null) {
+			return s;
+		}
+		return sb.append(s, copied, s.length()).toString();
 	}
 	
 	public String getValue( ) {
 		return value;
 	}
+	
+	/**
+	 * @return the raw value, or null if the value is an encoded String
+	 */
+	public byte[] getValueBytes() {
+		return valueBytes;
+	}
+	
+	/**
+	 * Makes the value opaque bytes, which binary frames carry as they are
+	 * and XML carries as a single Base64 ValueBytes element.
+	 */
+	public void setValueBytes(byte[] bytes) {
+		setValueBytes(bytes, false);
+	}
+	
+	/**
+	 * @param compressed whether the client compressed the bytes; the flag
+	 *        travels with them and is stored with them
+	 */
+	public void setValueBytes(byte[] bytes, boolean compressed) {
+		valueBytes = bytes;
+		valueCompressed = compressed;
+		value = null;
+	}
+	
+	/**
+	 * @return whether the raw value was compressed by the client
+	 */
+	public boolean isValueCompressed() {
+		return valueCompressed;
+	}
+	
+	/**
+	 * @return the value as servers store it: KVCompressedBytes or a byte[]
+	 *         for raw values, else the String
+	 */
+	public Serializable getPayload() {
+		return payload(value, valueBytes, valueCompressed);
+	}
+	
+	private static Serializable payload(String value, byte[] bytes, boolean compressed) {
+		if (bytes == null) {
+			return value;
+		}
+		return compressed ? new KVCompressedBytes(bytes) : bytes;
+	}
+	
+	/**
+	 * Sets the value from what a server stored: KVCompressedBytes or a
+	 * byte[] become the raw value, anything else must be the encoded String.
+	 */
+	public void setPayload(Object payload) {
+		if (payload instanceof KVCompressedBytes) {
+			setValueBytes(((KVCompressedBytes) payload).getBytes(), true);
+		} else if (payload instanceof byte[]) {
+			setValueBytes((byte[]) payload);
+		} else {
+			value = (String) payload;
+			valueBytes = null;
+			valueCompressed = false;
+		}
+	}
 
 	public boolean getStatus( ) {
 			return (status.equals("True"));
@@ -242,6 +673,10 @@ public class KVMessage implements Serializable {
 			return message;
 	}	
 	
+	public void setMsg(String m) {
+		message = m;
+	}
+	
 	public String getType() {
 		return msgType;
 	}
@@ -257,15 +692,250 @@ public class KVMessage implements Serializable {
 	public void setId(String id) {
 		tpcOpId = id;
 	}
+	
+	/**
+	 * @return the entries of a multi-key message, or null if it has none
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+	
+	public void setEntries(List<Entry> entries) {
+		this.entries = (entries == null) ? null : new ArrayList<Entry>(entries);
+	}
+	
+	/**
+	 * @return the request ID this message was framed with, or 0 if none
+	 */
+	public long getRequestId() {
+		return requestId;
+	}
+	
+	public void setRequestId(long requestId) {
+		this.requestId = requestId;
+	}
+	
+	/**
+	 * @return whether this message was received as a binary frame
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	/**
+	 * Writes this message to out as a binary frame or as XML. Does not
+	 * flush or close the stream.
+	 */
+	public void send(OutputStream out, boolean binary) throws IOException {
+		if (binary) {
+			ByteBuffer frame = toBinary();
+			out.write(frame.array(), 0, frame.limit());
+		} else {
+			out.write(toXML().getBytes());
+		}
+	}
+	
+	/**
+	 * @return a heap buffer holding this message's binary frame, ready to be read
+	 */
+	public ByteBuffer toBinary() {
+		return toBinary(requestId);
+	}
+	
+	/**
+	 * @return a heap buffer holding this message's binary frame tagged with
+	 *         requestId instead of the message's own, ready to be read
+	 */
+	public ByteBuffer toBinary(long requestId) {
+		ByteBuffer buf = ByteBuffer.allocate(binarySize(requestId));
+		writeBinary(buf, requestId);
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * @return the size in bytes of this message's binary frame
+	 */
+	public int binarySize() {
+		return binarySize(requestId);
+	}
+	
+	private int binarySize(long requestId) {
+		int size = 5 + 1 + 5 * 4 + 4 + ((requestId != 0) ? 8 : 0);
+		if (typeCode() == 0) {
+			size += 4 + utf8Length(msgType);
+		}
+		size += utf8Length(key) + payloadLength(value, valueBytes) + utf8Length(statusSet ? status : null)
+				+ utf8Length(message) + utf8Length(tpcOpId);
+		if (entries != null) {
+			for (Entry entry : entries) {
+				size += 3 * 4 + utf8Length(entry.key) + payloadLength(entry.value, entry.valueBytes)
+						+ utf8Length(entry.message);
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Writes this message's binary frame at the buffer's position; the
+	 * buffer needs binarySize() bytes remaining.
+	 */
+	public void writeBinary(ByteBuffer buf) {
+		writeBinary(buf, requestId);
+	}
+	
+	private void writeBinary(ByteBuffer buf, long requestId) {
+		int start = buf.position();
+		buf.put((byte) BINARY_MAGIC);
+		buf.putInt(0);				// body length, patched below
+		int code = typeCode();
+		buf.put((byte) code);
+		if (code == 0) {
+			writeString(buf, msgType);
+		}
+		writeString(buf, key);
+		writePayload(buf, value, valueBytes, valueCompressed);
+		writeString(buf, statusSet ? status : null);
+		writeString(buf, message);
+		writeString(buf, tpcOpId);
+		if (entries == null) {
+			buf.putInt(0);
+		} else {
+			buf.putInt(entries.size());
+			for (Entry entry : entries) {
+				writeString(buf, entry.key);
+				writePayload(buf, entry.value, entry.valueBytes, entry.compressed);
+				writeString(buf, entry.message);
+			}
+		}
+		if (requestId != 0) {
+			buf.putLong(requestId);
+		}
+		buf.putInt(start + 1, buf.position() - start - 5);
+	}
+	
+	private int typeCode() {
+		for (int i = 0; i < TYPE_CODES.length; i++) {
+			if (TYPE_CODES[i].equals(msgType)) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+	
+	private static void writeString(ByteBuffer buf, String s) {
+		if (s == null) {
+			buf.putInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(KVBytes.UTF8);
+		buf.putInt(bytes.length);
+		buf.put(bytes);
+	}
+	
+	private static void writePayload(ByteBuffer buf, String value, byte[] bytes, boolean compressed) {
+		if (bytes == null) {
+			writeString(buf, value);
+			return;
+		}
+		buf.putInt(-(2 * bytes.length + (compressed ? 3 : 2)));
+		buf.put(bytes);
+	}
+	
+	private static int utf8Length(String s) {
+		return (s == null) ? 0 : KVEncodedSizeWeigher.encodedSize(s);
+	}
+	
+	private static int payloadLength(String value, byte[] bytes) {
+		return (bytes != null) ? bytes.length : utf8Length(value);
+	}
     
 	
 	/**
 	 * Generate the XML representation for this message.
+	 * Keys and Values, top-level or in Entries, are escaped before the writer
+	 * escapes them again, which is what receivers of this format have always
+	 * expected.
 	 * @return the XML String
 	 */
 	public String toXML() {
-		// implement me
-		
+		StringWriter out = new StringWriter(64 + ((value == null) ? 0 : value.length()));
+		try {
+			XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out);
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("KVMessage");
+			if (msgType != null) {
+				writer.writeAttribute("type", msgType);
+			}
+			if (key != null) {
+				writeElement(writer, "Key", escape(key));
+			}
+			if (value != null) {
+				writeElement(writer, "Value", escape(value));
+			}
+			if (valueBytes != null) {
+				writeBytesElement(writer, valueBytes, valueCompressed);
+			}
+			if (statusSet) {
+				writeElement(writer, "Status", status);
+			}
+			if (message != null) {
+				writeElement(writer, "Message", message);
+			}
+			if (tpcOpId != null) {
+				writeElement(writer, "TPCOpId", tpcOpId);
+			}
+			if (entries != null) {
+				writer.writeStartElement("Entries");
+				for (Entry entry : entries) {
+					writer.writeStartElement("Entry");
+					if (entry.key != null) {
+						writeElement(writer, "Key", escape(entry.key));
+					}
+					if (entry.value != null) {
+						writeElement(writer, "Value", escape(entry.value));
+					}
+					if (entry.valueBytes != null) {
+						writeBytesElement(writer, entry.valueBytes, entry.compressed);
+					}
+					if (entry.message != null) {
+						writeElement(writer, "Message", entry.message);
+					}
+					writer.writeEndElement();
+				}
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return out.toString();
+	}
+	
+	private static void writeBytesElement(XMLStreamWriter writer, byte[] bytes, boolean compressed) throws XMLStreamException {
+		writer.writeStartElement("ValueBytes");
+		if (compressed) {
+			writer.writeAttribute("compressed", "true");
+		}
+		writer.writeCharacters(Base64.getEncoder().encodeToString(bytes));
+		writer.writeEndElement();
+	}
+	
+	private static void writeElement(XMLStreamWriter writer, String tag, String text) throws XMLStreamException {
+		writer.writeStartElement(tag);
+		writer.writeCharacters(text);
+		writer.writeEndElement();
+	}
+	
+	/**
+	 * Generate the XML representation by building a DOM and running a
+	 * Transformer, as toXML() did before. Kept for KVMessageBenchmark.
+	 * @return the XML String
+	 */
+	String toXMLDOM() {
 		String xmlString = null;
 		
 		try{
@@ -0,0 +1,91 @@
+/**
+ * XML codec benchmark for KVMessage
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Compares the DOM and the StAX implementations of the KVMessage XML
+ * codec, serializing and parsing a putreq with a small and with a 128 KB
+ * value. Each case runs for a fixed time after a warm-up of the same
+ * length and reports operations per second and microseconds per operation.
+ * 
+ * USAGE: KVMessageBenchmark [seconds per case]
+ */
+public class KVMessageBenchmark {
+	private static final int[] VALUE_SIZES = { 16, 128 * 1024 };
+
+	private interface Case {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+
+		System.out.println("seconds=" + seconds);
+		System.out.printf("%-24s%10s%16s%14s%n", "case", "value", "ops/s", "us/op");
+		for (int size : VALUE_SIZES) {
+			StringBuilder sb = new StringBuilder(size);
+			for (int i = 0; i < size; i++) {
+				sb.append((char) ('a' + i % 26));
+			}
+			final KVMessage msg = new KVMessage("putreq", "benchmark-key", sb.toString(), false);
+			final byte[] xml = msg.toXML().getBytes();
+
+			report("toXML DOM", size, seconds, new Case() {
+				public void run() { msg.toXMLDOM(); }
+			});
+			report("toXML StAX", size, seconds, new Case() {
+				public void run() { msg.toXML(); }
+			});
+			report("parse DOM", size, seconds, new Case() {
+				public void run() throws KVException { KVMessage.fromDOM(new ByteArrayInputStream(xml)); }
+			});
+			report("parse StAX", size, seconds, new Case() {
+				public void run() throws KVException { new KVMessage(new ByteArrayInputStream(xml)); }
+			});
+		}
+	}
+
+	private static void report(String name, int valueSize, int seconds, Case c) throws Exception {
+		measure(c, seconds * 1000L);	// warm up
+		long ops = measure(c, seconds * 1000L);
+		double opsPerSecond = ops / (double) seconds;
+		System.out.printf("%-24s%10d%16.0f%14.2f%n", name, valueSize, opsPerSecond, 1e6 / opsPerSecond);
+	}
+
+	private static long measure(Case c, long millis) throws Exception {
+		long ops = 0;
+		long end = System.currentTimeMillis() + millis;
+		while ((ops & 63) != 0 || System.currentTimeMillis() < end) {
+			c.run();
+			ops++;
+		}
+		return ops;
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Abstract interface for disk-backed KeyValue stores
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+
+/**
+ * A store whose contents survive a restart of the process. A KeyServer
+ * backed by one that syncs its writes does not need the TPCLog replayed
+ * into it; otherwise an acknowledged write may not have reached the disk
+ * before a crash, and the log's commits are replayed over the store.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public interface KVPersistentStore<K extends Serializable, V extends Serializable> extends KeyValueInterface<K, V> {
+	/**
+	 * Flush outstanding writes and release the files held by the store
+	 * @throws KVException if the store could not be closed cleanly
+	 */
+	public void close() throws KVException;
+
+	/**
+	 * Whether put/del force the write to stable storage before returning
+	 */
+	public void setSyncWrites(boolean syncWrites);
+
+	/**
+	 * @return whether put/del force the write to stable storage before returning
+	 */
+	public boolean isSyncWrites();
+}
@@ -0,0 +1,317 @@
+/**
+ * Immutable sorted table file used by the LSM storage engine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sorted, immutable run of encoded key/value records on disk. The file is
+ * the records in key order, followed by a sparse index holding every
+ * INDEX_INTERVAL-th key, a Bloom filter over all keys, and a fixed-size footer:
+ *   [bloomOffset:long][indexOffset:long][indexCount:int][entryCount:int][magic:long]
+ * The sparse index and the Bloom filter are kept in memory, so a lookup of
+ * an absent key usually needs no I/O, and any other lookup reads at most one
+ * block of INDEX_INTERVAL records with a single positioned read.
+ */
+final class KVSSTable {
+	/** Value returned by {@link #get(byte[])} for a deleted key */
+	static final byte[] TOMBSTONE = new byte[0];
+
+	private static final long MAGIC = 0x4b5653535461626dL;
+	private static final int FOOTER_SIZE = 32;
+	private static final int INDEX_INTERVAL = 16;
+
+	final long id;
+	final File file;
+	private final FileChannel channel;
+	private final byte[][] indexKeys;
+	private final long[] indexOffsets;
+	private final long dataEnd;
+	private final int entryCount;
+	private final KVBloomFilter bloom;
+
+	private KVSSTable(long id, File file, byte[][] indexKeys, long[] indexOffsets, long dataEnd, int entryCount, KVBloomFilter bloom) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.bloom = bloom;
+		this.indexKeys = indexKeys;
+		this.indexOffsets = indexOffsets;
+		this.dataEnd = dataEnd;
+		this.entryCount = entryCount;
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	/**
+	 * Write entries, which must be in key order, to a new table file
+	 * @param dropTombstones whether deletions can be left out because no older table remains
+	 * @param expectedEntries upper bound on the number of entries, used to size the Bloom filter
+	 * @param falsePositiveRate target false-positive rate of the Bloom filter
+	 */
+	static KVSSTable write(long id, File file, Iterator<Map.Entry<byte[], byte[]>> entries, boolean dropTombstones,
+			int expectedEntries, double falsePositiveRate) throws IOException {
+		FileOutputStream fileOut = new FileOutputStream(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+		List<byte[]> indexKeys = new ArrayList<byte[]>();
+		List<Long> indexOffsets = new ArrayList<Long>();
+		KVBloomFilter bloom = new KVBloomFilter(expectedEntries, falsePositiveRate);
+		long offset = 0;
+		int count = 0;
+		try {
+			while (entries.hasNext()) {
+				Map.Entry<byte[], byte[]> entry = entries.next();
+				byte[] key = entry.getKey();
+				byte[] value = entry.getValue();
+				boolean deleted = (value == TOMBSTONE);
+				if (deleted && dropTombstones) {
+					continue;
+				}
+				bloom.add(key);
+				if (count % INDEX_INTERVAL == 0) {
+					indexKeys.add(key);
+					indexOffsets.add(offset);
+				}
+				out.writeInt(key.length);
+				out.writeInt(deleted ? -1 : value.length);
+				out.write(key);
+				if (!deleted) {
+					out.write(value);
+				}
+				offset += 8 + key.length + (deleted ? 0 : value.length);
+				count++;
+			}
+			long indexOffset = offset;
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeInt(indexKeys.get(i).length);
+				out.write(indexKeys.get(i));
+				out.writeLong(indexOffsets.get(i));
+				offset += 12 + indexKeys.get(i).length;
+			}
+			long bloomOffset = offset;
+			bloom.writeTo(out);
+			out.writeLong(bloomOffset);
+			out.writeLong(indexOffset);
+			out.writeInt(indexKeys.size());
+			out.writeInt(count);
+			out.writeLong(MAGIC);
+			out.flush();
+			fileOut.getChannel().force(true);
+
+			long[] offsets = new long[indexOffsets.size()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = indexOffsets.get(i);
+			}
+			return new KVSSTable(id, file, indexKeys.toArray(new byte[indexKeys.size()][]), offsets, indexOffset, count, bloom);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Open an existing table file and load its sparse index
+	 */
+	static KVSSTable open(long id, File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < FOOTER_SIZE) {
+				throw new IOException("Truncated table " + file);
+			}
+			raf.seek(length - FOOTER_SIZE);
+			long bloomOffset = raf.readLong();
+			long indexOffset = raf.readLong();
+			int indexCount = raf.readInt();
+			int entryCount = raf.readInt();
+			if (raf.readLong() != MAGIC) {
+				throw new IOException("Corrupt table " + file);
+			}
+			byte[] index = new byte[(int) (bloomOffset - indexOffset)];
+			raf.seek(indexOffset);
+			raf.readFully(index);
+			ByteBuffer buf = ByteBuffer.wrap(index);
+			byte[][] keys = new byte[indexCount][];
+			long[] offsets = new long[indexCount];
+			for (int i = 0; i < indexCount; i++) {
+				keys[i] = new byte[buf.getInt()];
+				buf.get(keys[i]);
+				offsets[i] = buf.getLong();
+			}
+			byte[] filter = new byte[(int) (length - FOOTER_SIZE - bloomOffset)];
+			raf.readFully(filter);
+			KVBloomFilter bloom = KVBloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(filter)));
+			return new KVSSTable(id, file, keys, offsets, indexOffset, entryCount, bloom);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Checks the in-memory Bloom filter only
+	 * @return false if this table certainly has no record for key
+	 */
+	boolean mightContain(byte[] key) {
+		return bloom.mightContain(key);
+	}
+
+	/**
+	 * @return the encoded value, TOMBSTONE if the key was deleted, or null if
+	 * this table knows nothing about the key
+	 */
+	byte[] get(byte[] key) throws IOException {
+		int block = floorBlock(key);
+		if (block < 0) {
+			return null;
+		}
+		long start = indexOffsets[block];
+		long end = (block + 1 < indexOffsets.length) ? indexOffsets[block + 1] : dataEnd;
+		ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+		long position = start;
+		while (buf.hasRemaining()) {
+			int n = channel.read(buf, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of table " + file);
+			}
+			position += n;
+		}
+		buf.flip();
+		while (buf.hasRemaining()) {
+			int keyLength = buf.getInt();
+			int valueLength = buf.getInt();
+			byte[] candidate = new byte[keyLength];
+			buf.get(candidate);
+			int cmp = KVBytes.compare(candidate, key);
+			if (cmp == 0) {
+				if (valueLength < 0) {
+					return TOMBSTONE;
+				}
+				byte[] value = new byte[valueLength];
+				buf.get(value);
+				return value;
+			}
+			if (cmp > 0) {
+				return null;
+			}
+			buf.position(buf.position() + Math.max(valueLength, 0));
+		}
+		return null;
+	}
+
+	// Index of the last block whose first key is <= key, or -1
+	private int floorBlock(byte[] key) {
+		int lo = 0;
+		int hi = indexKeys.length - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (KVBytes.compare(indexKeys[mid], key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	int entryCount() {
+		return entryCount;
+	}
+
+	int bloomSizeInBytes() {
+		return bloom.sizeInBytes();
+	}
+
+	/**
+	 * Sequential reader over the records of this table, in key order
+	 */
+	Cursor cursor() throws IOException {
+		return new Cursor();
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+
+	class Cursor {
+		private final DataInputStream in;
+		private long position = 0;
+		byte[] key;
+		byte[] value;
+
+		private Cursor() throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		}
+
+		/**
+		 * Move to the next record
+		 * @return false once the table is exhausted
+		 */
+		boolean advance() throws IOException {
+			if (position >= dataEnd) {
+				key = null;
+				value = null;
+				in.close();
+				return false;
+			}
+			int keyLength = in.readInt();
+			int valueLength = in.readInt();
+			key = new byte[keyLength];
+			in.readFully(key);
+			if (valueLength < 0) {
+				value = TOMBSTONE;
+			} else {
+				value = new byte[valueLength];
+				in.readFully(value);
+			}
+			position += 8 + keyLength + Math.max(valueLength, 0);
+			return true;
+		}
+
+		KVSSTable table() {
+			return KVSSTable.this;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+}
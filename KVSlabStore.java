@@ -0,0 +1,338 @@
+/**
+ * Off-heap slab-allocated storage engine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory KeyValue store that keeps keys and values outside the Java heap.
+ * 
+ * Entries are stored in chunks carved out of direct ByteBuffer slabs, one
+ * set of slabs per size class (powers of two from MIN_CHUNK_SIZE up), laid
+ * out as [keyLength:int][valueLength:int][key][value]. Freed chunks go on a
+ * per-class free list and are reused by the next entry of that class.
+ * 
+ * The on-heap index is an open-addressing hash table made only of primitive
+ * arrays: the chunk address of each entry and its key hash. The heap
+ * footprint, and with it the GC pause time, therefore depends on the number
+ * of keys only, not on the size of the data.
+ *
+ * @param <K> Java Generic type for the Key
+ * @param <V> Java Generic type for the Value
+ */
+public class KVSlabStore<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	public static final int SLAB_SIZE = 1024 * 1024;
+
+	private static final int MIN_CHUNK_SIZE = 64;
+	private static final int NUM_CLASSES = 13;	// 64 bytes .. 256 KB
+	private static final int CHUNK_HEADER = 8;
+	private static final long EMPTY = 0;
+
+	/**
+	 * Slabs and free chunks of one size class
+	 */
+	private static class SlabClass {
+		final int chunkSize;
+		final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+		long[] free = new long[16];
+		int freeCount = 0;
+
+		SlabClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		void release(long address) {
+			if (freeCount == free.length) {
+				free = Arrays.copyOf(free, free.length * 2);
+			}
+			free[freeCount++] = address;
+		}
+	}
+
+	private final SlabClass[] classes = new SlabClass[NUM_CLASSES];
+	private final long maxBytes;
+	private long allocatedBytes = 0;
+	private long usedBytes = 0;
+
+	// Index: address of the chunk per slot (EMPTY if unused) and the key hash
+	private long[] addresses;
+	private int[] hashes;
+	private int size = 0;
+
+	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private final Lock read = readWriteLock.readLock();
+	private final Lock write = readWriteLock.writeLock();
+
+	/**
+	 * Store limited only by the JVM's direct memory limit (-XX:MaxDirectMemorySize)
+	 */
+	public KVSlabStore() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxBytes upper bound on the off-heap memory allocated for slabs
+	 */
+	public KVSlabStore(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			classes[i] = new SlabClass(MIN_CHUNK_SIZE << i);
+		}
+		addresses = new long[1024];
+		hashes = new int[1024];
+	}
+
+	@Override
+	public boolean put(K key, V value) throws KVException {
+		byte[] keyBytes = KVBytes.toBytes(key);
+		byte[] valueBytes = KVBytes.toBytes(value);
+		int hash = KVBytes.hash(keyBytes);
+		write.lock();
+		try {
+			long address = allocate(CHUNK_HEADER + keyBytes.length + valueBytes.length);
+			ByteBuffer chunk = chunk(address);
+			chunk.putInt(keyBytes.length);
+			chunk.putInt(valueBytes.length);
+			chunk.put(keyBytes);
+			chunk.put(valueBytes);
+
+			int slot = find(keyBytes, hash);
+			if (slot >= 0) {
+				free(addresses[slot]);
+				addresses[slot] = address;
+				return true;
+			}
+			if ((size + 1) * 2 > addresses.length) {
+				resize(addresses.length * 2);
+			}
+			slot = hash & (addresses.length - 1);
+			while (addresses[slot] != EMPTY) {
+				slot = (slot + 1) & (addresses.length - 1);
+			}
+			addresses[slot] = address;
+			hashes[slot] = hash;
+			size++;
+			return false;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(K key) throws KVException {
+		byte[] keyBytes = KVBytes.toBytes(key);
+		int hash = KVBytes.hash(keyBytes);
+		byte[] value;
+		read.lock();
+		try {
+			int slot = find(keyBytes, hash);
+			if (slot < 0) {
+				return null;
+			}
+			ByteBuffer chunk = chunk(addresses[slot]);
+			int keyLength = chunk.getInt();
+			value = new byte[chunk.getInt()];
+			chunk.position(chunk.position() + keyLength);
+			chunk.get(value);
+		} finally {
+			read.unlock();
+		}
+		return (V) KVBytes.fromBytes(value);
+	}
+
+	@Override
+	public void del(K key) throws KVException {
+		byte[] keyBytes = KVBytes.toBytes(key);
+		int hash = KVBytes.hash(keyBytes);
+		write.lock();
+		try {
+			int slot = find(keyBytes, hash);
+			if (slot < 0) {
+				return;
+			}
+			free(addresses[slot]);
+			removeSlot(slot);
+			size--;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Number of keys in the store
+	 */
+	public int size() {
+		read.lock();
+		try {
+			return size;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Off-heap bytes held in slabs, whether in use or not
+	 */
+	public long getAllocatedBytes() {
+		read.lock();
+		try {
+			return allocatedBytes;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * Off-heap bytes in chunks that currently hold an entry
+	 */
+	public long getUsedBytes() {
+		read.lock();
+		try {
+			return usedBytes;
+		} finally {
+			read.unlock();
+		}
+	}
+
+	// Slot of key in the index, or -1
+	private int find(byte[] key, int hash) {
+		int mask = addresses.length - 1;
+		int slot = hash & mask;
+		while (addresses[slot] != EMPTY) {
+			if (hashes[slot] == hash && keyEquals(addresses[slot], key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private boolean keyEquals(long address, byte[] key) {
+		ByteBuffer chunk = chunk(address);
+		if (chunk.getInt() != key.length) {
+			return false;
+		}
+		chunk.getInt();
+		for (int i = 0; i < key.length; i++) {
+			if (chunk.get() != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Backward-shift deletion keeps linear probing correct without tombstones
+	private void removeSlot(int slot) {
+		int mask = addresses.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (addresses[next] != EMPTY) {
+			int home = hashes[next] & mask;
+			boolean movable = (hole <= next) ? (home <= hole || home > next) : (home <= hole && home > next);
+			if (movable) {
+				addresses[hole] = addresses[next];
+				hashes[hole] = hashes[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		addresses[hole] = EMPTY;
+	}
+
+	private void resize(int capacity) {
+		long[] oldAddresses = addresses;
+		int[] oldHashes = hashes;
+		addresses = new long[capacity];
+		hashes = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldAddresses.length; i++) {
+			if (oldAddresses[i] != EMPTY) {
+				int slot = oldHashes[i] & mask;
+				while (addresses[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				addresses[slot] = oldAddresses[i];
+				hashes[slot] = oldHashes[i];
+			}
+		}
+	}
+
+	/*
+	 * A chunk address packs (class + 1) into the top byte, the slab index into
+	 * the next 24 bits and the byte offset in the slab into the low 32 bits,
+	 * so that no valid address equals EMPTY.
+	 */
+	private long allocate(int length) throws KVException {
+		int classId = 0;
+		while (classId < NUM_CLASSES && classes[classId].chunkSize < length) {
+			classId++;
+		}
+		if (classId == NUM_CLASSES) {
+			throw new KVException(new KVMessage("resp", "Over sized value"));
+		}
+		SlabClass slabClass = classes[classId];
+		if (slabClass.freeCount == 0) {
+			int slabSize = Math.max(SLAB_SIZE, slabClass.chunkSize);
+			if (allocatedBytes + slabSize > maxBytes) {
+				throw new KVException(new KVMessage("resp", "Storage full"));
+			}
+			ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+			long slabIndex = slabClass.slabs.size();
+			slabClass.slabs.add(slab);
+			allocatedBytes += slabSize;
+			for (int offset = slabSize - slabClass.chunkSize; offset >= 0; offset -= slabClass.chunkSize) {
+				slabClass.release(((long) (classId + 1) << 56) | (slabIndex << 32) | offset);
+			}
+		}
+		usedBytes += slabClass.chunkSize;
+		return slabClass.free[--slabClass.freeCount];
+	}
+
+	private void free(long address) {
+		SlabClass slabClass = classes[(int) (address >>> 56) - 1];
+		usedBytes -= slabClass.chunkSize;
+		slabClass.release(address);
+	}
+
+	// A private view of the chunk, positioned at its start
+	private ByteBuffer chunk(long address) {
+		SlabClass slabClass = classes[(int) (address >>> 56) - 1];
+		ByteBuffer slab = slabClass.slabs.get((int) ((address >>> 32) & 0xffffff)).duplicate();
+		int offset = (int) address;
+		slab.limit(offset + slabClass.chunkSize);
+		slab.position(offset);
+		return slab;
+	}
+}
@@ -0,0 +1,410 @@
+/**
+ * Cache with a W-TinyLFU admission policy
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache that keeps frequently read entries in the face of scans, using
+ * the W-TinyLFU policy:
+ * 
+ * - New entries enter a small window LRU (WINDOW_PERCENT of the capacity).
+ * - An entry pushed out of the window becomes a candidate for the main
+ *   region, a segmented LRU made of a probation and a protected segment.
+ *   It is only admitted if a count-min sketch of recent access frequencies
+ *   says it is used more often than the entry main would evict for it.
+ * - A hit in probation promotes the entry to protected; entries pushed out
+ *   of protected drop back to probation.
+ * 
+ * The sketch halves all its counters every SAMPLE_FACTOR * capacity
+ * recorded accesses, so old popularity fades. A one-hit wonder therefore
+ * never displaces a hot entry, which a pure LRU does on every scan.
+ * 
+ * Capacity is counted in entries, or, when the cache is built with a
+ * KVWeigher, in the total weight of the entries (e.g. bytes with
+ * KVEncodedSizeWeigher); every region then has a weight budget instead of
+ * a length, and a candidate heavier than its victim may push out several.
+ * 
+ * Lookups are lock-free map reads. The bookkeeping of a hit is done only if
+ * the policy lock is free at that moment and is otherwise skipped, which
+ * costs a little accuracy under contention instead of serializing readers.
+ */
+public class KVTinyLFUCache<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+	private static final int SAMPLE_FACTOR = 10;
+	/** Average entry weight assumed to size the sketch of a weighted cache */
+	private static final int ASSUMED_ENTRY_WEIGHT = 256;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static class Node<K, V> {
+		final K key;
+		volatile V value;
+		int weight;
+		int region;
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Doubly-linked LRU list around a sentinel; most recently used first
+	 */
+	private static class AccessOrder<K, V> {
+		final Node<K, V> head = new Node<K, V>(null, null);
+		int size = 0;
+		long weight = 0;
+
+		AccessOrder() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		void addFirst(Node<K, V> node) {
+			node.prev = head;
+			node.next = head.next;
+			head.next.prev = node;
+			head.next = node;
+			size++;
+			weight += node.weight;
+		}
+
+		void remove(Node<K, V> node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+			size--;
+			weight -= node.weight;
+		}
+
+		void moveToFront(Node<K, V> node) {
+			remove(node);
+			addFirst(node);
+		}
+
+		Node<K, V> last() {
+			return (head.prev == head) ? null : head.prev;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4-bit counters, sixteen to a long, with four hash
+	 * functions. Estimates saturate at 15, which is all admission needs.
+	 */
+	static class FrequencySketch {
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions = 0;
+
+		FrequencySketch(int capacity) {
+			int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+			table = new long[size];
+			mask = size - 1;
+			sampleSize = Math.max(16, capacity * SAMPLE_FACTOR);
+		}
+
+		int frequency(int hash) {
+			int min = 15;
+			for (int i = 0; i < 4; i++) {
+				long h = mix(hash, i);
+				int index = (int) (h >>> 32) & mask;
+				int shift = ((int) h & 15) << 2;
+				min = Math.min(min, (int) ((table[index] >>> shift) & 15));
+			}
+			return min;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				long h = mix(hash, i);
+				int index = (int) (h >>> 32) & mask;
+				int shift = ((int) h & 15) << 2;
+				if (((table[index] >>> shift) & 15) != 15) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) {
+				reset();
+			}
+		}
+
+		// Halve every counter so that stale popularity ages out
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			}
+			additions /= 2;
+		}
+
+		private static long mix(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[(i + 1) & 3];
+			return h ^ (h >>> 29);
+		}
+	}
+
+	private final ConcurrentHashMap<K, Node<K, V>> map;
+	private final ReentrantLock policyLock = new ReentrantLock();
+	private final FrequencySketch sketch;
+	private final AccessOrder<K, V> window = new AccessOrder<K, V>();
+	private final AccessOrder<K, V> probation = new AccessOrder<K, V>();
+	private final AccessOrder<K, V> protectedOrder = new AccessOrder<K, V>();
+	private final KVWeigher<? super K, ? super V> weigher;
+	private final long maxWindow;
+	private final long maxMain;
+	private final long maxProtected;
+
+	/**
+	 * @param cacheSize the maximum number of entries that will be kept in this cache.
+	 */
+	public KVTinyLFUCache(int cacheSize) {
+		this(cacheSize, null, cacheSize);
+	}
+
+	/**
+	 * Creates a cache bounded by the total weight of its entries.
+	 * @param maxWeight the maximum total weight, e.g. bytes
+	 * @param weigher computes the weight of each entry
+	 */
+	public KVTinyLFUCache(long maxWeight, KVWeigher<? super K, ? super V> weigher) {
+		this(maxWeight, weigher, (int) Math.min(1 << 24, Math.max(0, maxWeight) / ASSUMED_ENTRY_WEIGHT));
+	}
+
+	/**
+	 * @param maxWeight the maximum total weight of the entries
+	 * @param weigher computes the weight of each entry; null counts every entry as 1
+	 * @param expectedEntries number of entries the cache is expected to hold,
+	 *        used to size the frequency sketch and the map
+	 */
+	public KVTinyLFUCache(long maxWeight, KVWeigher<? super K, ? super V> weigher, int expectedEntries) {
+		long capacity = Math.max(0, maxWeight);
+		this.weigher = weigher;
+		maxWindow = (capacity == 0) ? 0 : Math.max(1, capacity * WINDOW_PERCENT / 100);
+		maxMain = capacity - maxWindow;
+		maxProtected = maxMain * PROTECTED_PERCENT / 100;
+		int entries = Math.max(0, expectedEntries);
+		map = new ConcurrentHashMap<K, Node<K, V>>(Math.max(16, entries * 4 / 3 + 1));
+		sketch = new FrequencySketch(entries);
+	}
+
+	/**
+	 * Retrieves an entry from the cache and records the access.
+	 * @return the value associated to this key, or null if it is not cached
+	 */
+	public V get(K key) {
+		Node<K, V> node = map.get(key);
+		if (node == null) {
+			if (policyLock.tryLock()) {
+				try {
+					sketch.increment(spread(key));
+				} finally {
+					policyLock.unlock();
+				}
+			}
+			return null;
+		}
+		if (policyLock.tryLock()) {
+			try {
+				onHit(node);
+			} finally {
+				policyLock.unlock();
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * Adds or replaces an entry. A new entry always enters the window; it
+	 * may be rejected later when it competes for a place in main. An entry
+	 * heavier than the whole cache is not cached.
+	 * @return whether an entry with this key was overwritten
+	 */
+	public boolean put(K key, V value) {
+		if (maxWindow == 0) {
+			return false;
+		}
+		int weight = (weigher == null) ? 1 : Math.max(0, weigher.weigh(key, value));
+		policyLock.lock();
+		try {
+			Node<K, V> node = map.get(key);
+			if (weight > maxWindow + maxMain) {
+				if (node != null) {
+					map.remove(key);
+					orderOf(node).remove(node);
+				}
+				return node != null;
+			}
+			if (node != null) {
+				AccessOrder<K, V> order = orderOf(node);
+				order.weight += weight - node.weight;
+				node.weight = weight;
+				node.value = value;
+				onHit(node);
+				evict();
+				return true;
+			}
+			sketch.increment(spread(key));
+			node = new Node<K, V>(key, value);
+			node.weight = weight;
+			node.region = WINDOW;
+			window.addFirst(node);
+			map.put(key, node);
+			evict();
+			return false;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entry from this cache.
+	 */
+	public void del(K key) {
+		policyLock.lock();
+		try {
+			Node<K, V> node = map.remove(key);
+			if (node != null) {
+				orderOf(node).remove(node);
+			}
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	/**
+	 * Number of entries currently cached
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * Total weight of the cached entries; the entry count if the cache has no weigher
+	 */
+	public long weightedSize() {
+		policyLock.lock();
+		try {
+			return window.weight + probation.weight + protectedOrder.weight;
+		} finally {
+			policyLock.unlock();
+		}
+	}
+
+	// Called with the policy lock held
+	private void onHit(Node<K, V> node) {
+		if (node.prev == null) {
+			return;		// removed concurrently
+		}
+		sketch.increment(spread(node.key));
+		if (node.region == PROBATION) {
+			probation.remove(node);
+			node.region = PROTECTED;
+			protectedOrder.addFirst(node);
+			while (protectedOrder.weight > maxProtected) {
+				Node<K, V> demoted = protectedOrder.last();
+				protectedOrder.remove(demoted);
+				demoted.region = PROBATION;
+				probation.addFirst(demoted);
+			}
+		} else {
+			orderOf(node).moveToFront(node);
+		}
+	}
+
+	// Move window overflow into main, letting the sketch decide who stays
+	private void evict() {
+		while (window.weight > maxWindow) {
+			Node<K, V> candidate = window.last();
+			window.remove(candidate);
+			if (mainWeight() + candidate.weight <= maxMain) {
+				candidate.region = PROBATION;
+				probation.addFirst(candidate);
+				continue;
+			}
+			Node<K, V> victim = mainVictim();
+			if (victim == null || candidate.weight > maxMain
+					|| sketch.frequency(spread(candidate.key)) <= sketch.frequency(spread(victim.key))) {
+				map.remove(candidate.key);
+				continue;
+			}
+			// The candidate beat the coldest entry of main; make room for it
+			while (mainWeight() + candidate.weight > maxMain) {
+				victim = mainVictim();
+				orderOf(victim).remove(victim);
+				map.remove(victim.key);
+			}
+			candidate.region = PROBATION;
+			probation.addFirst(candidate);
+		}
+		// An overwrite may have made main heavier than its budget
+		while (mainWeight() > maxMain) {
+			Node<K, V> victim = mainVictim();
+			orderOf(victim).remove(victim);
+			map.remove(victim.key);
+		}
+	}
+
+	private long mainWeight() {
+		return probation.weight + protectedOrder.weight;
+	}
+
+	private Node<K, V> mainVictim() {
+		Node<K, V> victim = probation.last();
+		return (victim != null) ? victim : protectedOrder.last();
+	}
+
+	private AccessOrder<K, V> orderOf(Node<K, V> node) {
+		switch (node.region) {
+		case WINDOW:
+			return window;
+		case PROBATION:
+			return probation;
+		default:
+			return protectedOrder;
+		}
+	}
+
+	private static int spread(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -46,7 +46,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * @param <V> Java Generic Type for the Value
  */
 public class KeyServer<K extends Serializable, V extends Serializable> implements KeyValueInterface<K, V> {
-	private KVStore<K, V> dataStore = null;
+	/** Largest encoded key and value a KeyServer accepts, in bytes */
+	public static final int MAX_KEY_SIZE = 256;
+	public static final int MAX_VALUE_SIZE = 128000;
+
+	private KeyValueInterface<K, V> dataStore = null;
 	private KVCache<K, V> dataCache = null;
 	private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 	private final Lock read = readWriteLock.readLock();
@@ -62,23 +66,40 @@ public class KeyServer<K extends Serializable, V extends Serializable> implement
 		dataCache = new KVCache( cacheSize );	
 	}
 	
+	/**
+	 * @param cacheSize number of entries in the data Cache.
+	 * @param dataStore storage engine that holds the data of this server.
+	 */
+	public KeyServer(int cacheSize, KeyValueInterface<K, V> dataStore) {
+		this.dataStore = dataStore;
+		dataCache = new KVCache<K, V>( cacheSize );
+	}
+	
+	/**
+	 * @return whether the data survives a restart without replaying the TPCLog:
+	 *         the store is persistent and forces every write to disk
+	 */
+	public boolean isDurable() {
+		return dataStore instanceof KVPersistentStore
+				&& ((KVPersistentStore<K, V>) dataStore).isSyncWrites();
+	}
+	
 	public boolean put(K key, V value) throws KVException {
 		
 		write.lock();
 		boolean status;
-		if (key.toString().getBytes().length > 256) {
+		if (KVEncodedSizeWeigher.encodedSize(key) > MAX_KEY_SIZE) {
 			KVMessage msg = new KVMessage ("resp", "Over sized key");
 			write.unlock();
 			throw new KVException(msg);
 		}
-		if (value.toString().getBytes().length > 128000) {
+		if (KVEncodedSizeWeigher.encodedSize(value) > MAX_VALUE_SIZE) {
 			KVMessage msg = new KVMessage ("resp", "Over sized value");
 			write.unlock();
 			throw new KVException(msg);			
 		}
 		try {
-			status = (dataStore.get(key) != null);
-			dataStore.put(key, value); //write through to store
+			status = dataStore.put(key, value); //write through to store
 			dataCache.put(key, value); //also put in cache
 			write.unlock();
 			return status;
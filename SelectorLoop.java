@@ -0,0 +1,316 @@
+/**
+ * Non-blocking connection handling for SocketServer
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An I/O thread of a SocketServer in selector mode. It owns a Selector and
+ * the connections registered with it, reads their bytes until a request is
+ * complete, and hands the request to a MessageHandler; the handler's
+ * workers respond through a ChannelResponder, which queues the bytes for
+ * this thread to write. No thread ever blocks on a single socket.
+ */
+class SelectorLoop implements Runnable {
+	private final Selector selector;
+	private final MessageHandler handler;
+	private final ConcurrentLinkedQueue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+	private final ConcurrentLinkedQueue<ChannelConnection> writable = new ConcurrentLinkedQueue<ChannelConnection>();
+
+	SelectorLoop(MessageHandler handler) throws IOException {
+		this.selector = Selector.open();
+		this.handler = handler;
+	}
+
+	/**
+	 * Hands a newly accepted, non-blocking channel to this loop
+	 */
+	void add(SocketChannel channel) {
+		accepted.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks this loop to write what connection has queued
+	 */
+	void wantWrite(ChannelConnection connection) {
+		writable.add(connection);
+		selector.wakeup();
+	}
+
+	MessageHandler getHandler() {
+		return handler;
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+
+			SocketChannel channel;
+			while ((channel = accepted.poll()) != null) {
+				try {
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					key.attach(new ChannelConnection(this, channel, key));
+				} catch (IOException e) {
+					close(channel);
+				}
+			}
+			ChannelConnection connection;
+			while ((connection = writable.poll()) != null) {
+				connection.write();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				connection = (ChannelConnection) key.attachment();
+				if (key.isValid() && key.isReadable()) {
+					connection.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					connection.write();
+				}
+			}
+		}
+	}
+
+	static void close(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
+
+/**
+ * State of one connection in a SelectorLoop. Binary frames are dispatched
+ * as soon as they are complete, so a persistent connection can have many
+ * requests in flight; an XML request has no length prefix and is parsed
+ * once the client shuts down its output, as every client does after its
+ * one request. Only the loop's thread calls read() and write().
+ */
+class ChannelConnection {
+	private static final int INITIAL_BUFFER = 8192;
+
+	private final SelectorLoop loop;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+	private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+	// Requests dispatched and not yet responded to
+	private final AtomicInteger pending = new AtomicInteger();
+	private boolean eof = false;
+	// Set once a response to a single-request connection is queued
+	private volatile boolean lastResponse = false;
+
+	ChannelConnection(SelectorLoop loop, SocketChannel channel, SelectionKey key) {
+		this.loop = loop;
+		this.channel = channel;
+		this.key = key;
+	}
+
+	void read() {
+		int n;
+		try {
+			n = channel.read(in);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		if (n < 0) {
+			eof = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+
+		in.flip();
+		boolean binary = !in.hasRemaining() || (in.get(0) & 0xFF) == KVMessage.BINARY_MAGIC;
+		try {
+			if (binary) {
+				readFrames();
+			} else {
+				readXML();
+			}
+		} catch (KVException e) {
+			// Unparseable input: answer with the error, then drop the connection
+			in.clear();
+			eof = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			pending.incrementAndGet();
+			try {
+				new ChannelResponder(this, 0, binary).respond(e.getMsg());
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		closeIfDone();
+	}
+
+	// Dispatches every complete frame at the front of the buffer
+	private void readFrames() throws KVException {
+		while (in.remaining() >= 5) {
+			if ((in.get(in.position()) & 0xFF) != KVMessage.BINARY_MAGIC) {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			int length = in.getInt(in.position() + 1);
+			if (length < 1 || length > KVMessage.MAX_FRAME_LENGTH) {
+				throw new KVException(new KVMessage("resp", "Binary Error: Received unparseable message"));
+			}
+			if (in.remaining() < 5 + length) {
+				grow(5 + length);
+				break;
+			}
+			dispatch(KVMessage.fromBinary(in));
+		}
+		in.compact();
+	}
+
+	private void readXML() throws KVException {
+		if (!eof) {
+			if (in.limit() == in.capacity()) {
+				if (in.capacity() > KVMessage.MAX_FRAME_LENGTH) {
+					throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+				}
+				grow(in.capacity() * 2);
+			}
+			// Back to filling the buffer until the client shuts down its output
+			in.position(in.limit());
+			in.limit(in.capacity());
+			return;
+		}
+		KVMessage request = KVMessage.receive(new ByteArrayInputStream(in.array(), 0, in.limit()));
+		in.clear();
+		dispatch(request);
+	}
+
+	// Makes room for at least size bytes; the buffer is in read mode
+	private void grow(int size) {
+		if (in.capacity() >= size) {
+			return;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(size, in.capacity() * 2));
+		larger.put(in);
+		larger.flip();
+		in = larger;
+	}
+
+	private void dispatch(KVMessage request) {
+		pending.incrementAndGet();
+		loop.getHandler().handleMessage(request,
+				new ChannelResponder(this, request.getRequestId(), request.isBinary()));
+	}
+
+	InetAddress getRemoteAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	/**
+	 * Queues a response; called from any thread
+	 */
+	void enqueue(ByteBuffer response, boolean last) {
+		out.add(response);
+		if (last) {
+			lastResponse = true;
+		}
+		pending.decrementAndGet();
+		loop.wantWrite(this);
+	}
+
+	void write() {
+		if (!channel.isOpen()) {
+			return;
+		}
+		try {
+			ByteBuffer head;
+			while ((head = out.peek()) != null) {
+				channel.write(head);
+				if (head.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				out.poll();
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close();
+			return;
+		}
+		closeIfDone();
+	}
+
+	private void closeIfDone() {
+		if ((eof || lastResponse) && pending.get() == 0 && out.isEmpty()) {
+			close();
+		}
+	}
+
+	private void close() {
+		key.cancel();
+		SelectorLoop.close(channel);
+	}
+}
+
+/**
+ * Responder for a request read by a SelectorLoop: encodes the response in
+ * the request's format, tagged with its request ID, and leaves the writing
+ * to the loop. A response to an untagged request is the connection's last.
+ */
+class ChannelResponder implements KVResponder {
+	private final ChannelConnection connection;
+	private final long requestId;
+	private final boolean binary;
+
+	ChannelResponder(ChannelConnection connection, long requestId, boolean binary) {
+		this.connection = connection;
+		this.requestId = requestId;
+		this.binary = binary;
+	}
+
+	public void respond(KVMessage response) throws IOException {
+		ByteBuffer bytes = binary ? response.toBinary(requestId) : ByteBuffer.wrap(response.toXML().getBytes());
+		connection.enqueue(bytes, requestId == 0);
+	}
+
+	public InetAddress getRemoteAddress() {
+		return connection.getRemoteAddress();
+	}
+}
@@ -30,12 +30,13 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.Serializable;
 import java.net.InetAddress;
 
 public class Server {
 	static SocketServer server = null;
 	
-	static TPCMaster<String, String> tpcMaster = null;
+	static TPCMaster<String, Serializable> tpcMaster = null;
 	
 	/**
 	 * @param args list of SlaveServers in "SlaveServerID@HostName:Port" format
@@ -44,17 +45,71 @@ public class Server {
 	public static void main(String[] args) throws Exception {		
 		
 		// Create TPCMaster
-		tpcMaster = new TPCMaster<String, String>(args);
+		tpcMaster = new TPCMaster<String, Serializable>(args);
+		// -Dkv.masterCache=clock|lru replaces the default W-TinyLFU cache;
+		// -Dkv.masterCacheBytes=N bounds the tinylfu or lru cache by bytes instead of entries
+		String cacheMode = System.getProperty("kv.masterCache", "tinylfu");
+		long cacheBytes = Long.getLong("kv.masterCacheBytes", 0L);
+		KVEncodedSizeWeigher weigher = new KVEncodedSizeWeigher();
+		if (cacheMode.equals("clock")) {
+			tpcMaster.setMasterCache(new KVClockCache<String, Serializable>(1000));
+		} else if (cacheMode.equals("lru")) {
+			tpcMaster.setMasterCache((cacheBytes > 0)
+					? new KVCache<String, Serializable>(cacheBytes, weigher)
+					: new KVCache<String, Serializable>(1000));
+		} else if (cacheBytes > 0) {
+			tpcMaster.setMasterCache(new KVTinyLFUCache<String, Serializable>(cacheBytes, weigher));
+		}
+		// -Dkv.slaveConnections=N keeps up to N connections open to each slave, and
+		// -Dkv.slaveConnectionIdleSeconds=N closes those left unused for N seconds
+		tpcMaster.setSlaveConnectionPool(new KVConnectionPool(
+				Integer.getInteger("kv.slaveConnections", 4),
+				Long.getLong("kv.slaveConnectionIdleSeconds", 60L) * 1000));
 		tpcMaster.run();
 		
 		// Create KVClientHandler
 		System.out.println("Binding Master:");
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress(), 8080);
-		NetworkHandler handler = new KVClientHandler<String, String>(null, tpcMaster);
-		server.addHandler(handler);
+		// Pipelined requests run concurrently, up to -Dkv.masterThreads at a time
+		int threads = Integer.getInteger("kv.masterThreads", 16);
+		KVClientHandler<String, Serializable> handler = new KVClientHandler<String, Serializable>(null, threads, tpcMaster);
+		StagedPipeline pipeline = null;
+		// -Dkv.masterIo=nio reads connections on -Dkv.masterIoThreads selector threads
+		// instead of a blocking accept loop that reads each request itself
+		if (System.getProperty("kv.masterIo", "blocking").equals("nio")) {
+			server.addMessageHandler(handler, Integer.getInteger("kv.masterIoThreads", 2));
+		} else if (Boolean.getBoolean("kv.pipeline")) {
+			// -Dkv.pipeline=true reads and writes on their own stages so the accept loop only accepts
+			pipeline = StagedPipeline.fromProperties(handler, handler.getThreadPool(), true);
+			server.addHandler(pipeline);
+		} else {
+			server.addHandler(handler);
+		}
+		// -Dkv.poolStatsSeconds=N prints the request pool's (or pipeline's) metrics every N seconds
+		int statsSeconds = Integer.getInteger("kv.poolStatsSeconds", 0);
+		if (statsSeconds > 0) {
+			startPoolStats((pipeline != null) ? pipeline : handler.getThreadPool(), statsSeconds);
+		}
 		server.connect();
 		System.out.println("Starting Master");
 		server.run();	
 	}
 
+	private static void startPoolStats(final Object pool, final int seconds) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(seconds * 1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println("Master pool: " + pool);
+				}
+			}
+		}, "pool-stats");
+		t.setDaemon(true);
+		t.start();
+	}
+
 }
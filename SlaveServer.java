@@ -32,14 +32,16 @@ package edu.berkeley.cs162;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.Socket;
 
 public class SlaveServer {
 	static String logPath = null;
-	static TPCLog<String, String> tpcLog = null;	
+	static String dataPath = null;
+	static TPCLog<String, Serializable> tpcLog = null;	
 	
-	static KeyServer<String, String> keyServer = null;
+	static KeyServer<String, Serializable> keyServer = null;
 	static SocketServer server = null;
 	
 	// 64-bit globally unique ID of this SlaveServer
@@ -55,8 +57,8 @@ public class SlaveServer {
 	 * @param args
 	 */
 	public static void main(String[] args) throws Exception {
-		if (args.length != 4) {
-			System.err.println("USAGE: SlaveServer <slaveID> <masterHostName> <masterPort> <registrationPort>");
+		if (args.length != 4 && args.length != 5) {
+			System.err.println("USAGE: SlaveServer <slaveID> <masterHostName> <masterPort> <registrationPort> [log|lsm|btree|slab|memory]");
 			System.exit(1);
 		}
 		
@@ -65,13 +67,27 @@ public class SlaveServer {
 		masterHostName = args[1];
 		masterPort = Integer.parseInt(args[2]);
 		registrationPort = Integer.parseInt(args[3]);
+		String engine = (args.length == 5) ? args[4] : "log";
 		
 		// Create TPCMasterHandler
 		System.out.println("Binding SlaveServer:");
-		keyServer = new KeyServer<String, String>(1000);
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
-		TPCMasterHandler<String, String> handler = new TPCMasterHandler<String, String>(keyServer);
-		server.addHandler(handler);
+		dataPath = slaveID + "@" + server.getHostname() + ".data";
+		// Slab storage already keeps values off the heap; a cache would copy them back onto it
+		int cacheSize = engine.equals("slab") ? 0 : 1000;
+		KeyValueInterface<String, Serializable> store = createStore(engine, dataPath);
+		keyServer = new KeyServer<String, Serializable>(cacheSize, store);
+		TPCMasterHandler<String, Serializable> handler = new TPCMasterHandler<String, Serializable>(keyServer);
+		if (Boolean.getBoolean("kv.pipeline")) {
+			server.addHandler(StagedPipeline.fromProperties(handler, handler.getThreadPool(), true));
+		} else {
+			server.addHandler(handler);
+		}
+		// -Dkv.poolStatsSeconds=N prints the request pool's and the storage engine's metrics every N seconds
+		int statsSeconds = Integer.getInteger("kv.poolStatsSeconds", 0);
+		if (statsSeconds > 0) {
+			startStats(handler.getThreadPool(), store, statsSeconds);
+		}
 		server.connect();
 		System.out.println("Starting SlaveServer at " + server.getHostname() + ":" + server.getPort());
 
@@ -88,7 +104,7 @@ public class SlaveServer {
 		
 		// Create TPCLog
 		logPath = slaveID + "@" + server.getHostname();
-		tpcLog = new TPCLog<String, String>(logPath, keyServer, slaveID);
+		tpcLog = new TPCLog<String, Serializable>(logPath, keyServer, slaveID);
 		
 		// Load from disk and rebuild logs
 		tpcLog.rebuildKeyServer();
@@ -101,12 +117,11 @@ public class SlaveServer {
 		KVMessage regMsg = new KVMessage("register", slaveID+"@"+server.getHostname()+":"+server.getPort());
 		
 		DataOutputStream out = new DataOutputStream(regSocket.getOutputStream() );
-		String message = regMsg.toXML();
-		out.write(message.getBytes());
+		regMsg.send(out, true);
 		regSocket.shutdownOutput();
 		
 		InputStream in = regSocket.getInputStream();
-		KVMessage regResp = new KVMessage(in);
+		KVMessage regResp = KVMessage.receive(in);
 		
 		if (!regResp.getMsg().equals("Successfully registered "+slaveID+"@"+server.getHostname()+":"+server.getPort())){
 			throw new Exception("Unable to register with master server: registration ACK not received");
@@ -114,5 +129,68 @@ public class SlaveServer {
 		System.out.println("Slave "+slaveID+": Registration complete!");
 		
 	}
+	
+	/**
+	 * Storage engine selected on the command line
+	 * @param engine "log" (default), "lsm" for write-heavy data sets larger than the heap,
+	 *               "btree" for a memory-mapped page file, "slab" for off-heap memory, or "memory"
+	 * @param path directory for the engine's files, or the page file for "btree"
+	 */
+	static KeyValueInterface<String, Serializable> createStore(String engine, String path) throws KVException {
+		KeyValueInterface<String, Serializable> store = createEngine(engine, path);
+		// Persistent engines force every write before it is acknowledged, so
+		// the TPCLog only has to hold undecided operations; -Dkv.syncWrites=false
+		// trades that for replaying the whole log on restart
+		if (store instanceof KVPersistentStore) {
+			((KVPersistentStore<?, ?>) store).setSyncWrites(
+					Boolean.parseBoolean(System.getProperty("kv.syncWrites", "true")));
+		}
+		// -Dkv.bloomFpRate sizes the LSM engine's Bloom filters: lower rates
+		// save more disk reads for absent keys and take more memory
+		String bloomFpRate = System.getProperty("kv.bloomFpRate");
+		if (bloomFpRate != null && store instanceof KVLSMStore) {
+			((KVLSMStore<?, ?>) store).setBloomFalsePositiveRate(Double.parseDouble(bloomFpRate));
+		}
+		return store;
+	}
+
+	private static void startStats(final ThreadPool pool, final KeyValueInterface<?, ?> store, final int seconds) {
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(seconds * 1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.println("Slave " + slaveID + " pool: " + pool);
+					if (store instanceof KVLSMStore) {
+						((KVLSMStore<?, ?>) store).printStats();
+					}
+				}
+			}
+		}, "pool-stats");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static KeyValueInterface<String, Serializable> createEngine(String engine, String path) throws KVException {
+		if (engine.equals("lsm")) {
+			return new KVLSMStore<String, Serializable>(path);
+		}
+		if (engine.equals("btree")) {
+			return new KVBTreeStore<String, Serializable>(path);
+		}
+		if (engine.equals("slab")) {
+			return new KVSlabStore<String, Serializable>();
+		}
+		if (engine.equals("memory")) {
+			return new KVStore<String, Serializable>();
+		}
+		if (!engine.equals("log")) {
+			System.err.println("Unknown storage engine " + engine + "; using log");
+		}
+		return new KVLogStore<String, Serializable>(path);
+	}
 
 }
@@ -30,8 +30,11 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /** 
  * This is an generic class that should handle all TCP network connections 
@@ -43,6 +46,13 @@ public class SocketServer {
 	int port;
 	NetworkHandler handler;
 	ServerSocket server;
+	// Selector mode: connections are read by ioThreads SelectorLoops
+	MessageHandler messageHandler;
+	int ioThreads;
+	ServerSocketChannel channel;
+	
+	// Pending connections the kernel queues in selector mode, which is meant for many clients
+	private static final int SELECTOR_BACKLOG = 1024;
 	
 	public SocketServer(String hostname) {
 		this.hostname = hostname;
@@ -64,6 +74,12 @@ public class SocketServer {
 
 	public void connect() throws IOException {
 		// implement me
+		if (messageHandler != null) {
+			channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(port), SELECTOR_BACKLOG);
+			server = channel.socket();
+			return;
+		}
 		server = new ServerSocket( port );
 	}
 	
@@ -73,6 +89,10 @@ public class SocketServer {
 	 */
 	public void run() throws IOException {
 		// implement me
+		if (messageHandler != null) {
+			runSelectors();
+			return;
+		}
 		while ( true ){
 		    if ( server.isClosed()){
 		        throw new IOException("Socket is closed");
@@ -83,6 +103,32 @@ public class SocketServer {
 		}	
 	}
 	
+	/**
+	 * Selector mode: the accept loop only accepts, and hands each connection
+	 * round-robin to a SelectorLoop, which reads it without blocking.
+	 */
+	private void runSelectors() throws IOException {
+		SelectorLoop[] loops = new SelectorLoop[ioThreads];
+		for (int i = 0; i < ioThreads; i++) {
+			loops[i] = new SelectorLoop(messageHandler);
+			Thread t = new Thread(loops[i], "io-" + i + "@" + getPort());
+			t.setDaemon(true);
+			t.start();
+		}
+		int next = 0;
+		while ( true ){
+			if ( !channel.isOpen() ){
+				throw new IOException("Socket is closed");
+			}
+			SocketChannel client = channel.accept();
+			client.configureBlocking(false);
+			// Responses are small and written whole; don't let Nagle hold them back
+			client.socket().setTcpNoDelay(true);
+			loops[next].add(client);
+			next = (next + 1) % ioThreads;
+		}
+	}
+	
 	/** 
 	 * Add the network handler for the current socket server
 	 * @param handler is logic for servicing a network connection
@@ -91,4 +137,17 @@ public class SocketServer {
 		// implement me
 		this.handler = handler;
 	}
+	
+	/**
+	 * Serve connections in selector mode instead: ioThreads threads read
+	 * all connections with non-blocking I/O and pass each complete request
+	 * to handler, so a slow client holds up no thread. Must be called
+	 * before connect().
+	 * @param handler runs the requests; must not block for long
+	 * @param ioThreads number of SelectorLoop threads
+	 */
+	public void addMessageHandler(MessageHandler handler, int ioThreads) {
+		this.messageHandler = handler;
+		this.ioThreads = ioThreads;
+	}
 }
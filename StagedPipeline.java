@@ -0,0 +1,216 @@
+/**
+ * Staged request pipeline for blocking servers
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A NetworkHandler that splits serving a connection into stages, each with
+ * its own threads and bounded queue, so that the accept loop only accepts:
+ * 
+ *   read:    reads and parses the request off the socket
+ *   execute: the MessageHandler's own ThreadPool runs it
+ *   write:   serializes the response and writes it to the socket
+ * 
+ * A full stage blocks the stage feeding it, which pushes back on the accept
+ * loop rather than letting queues grow. Persistent connections keep their
+ * reader thread (see FramedConnectionReader) but still execute and write
+ * through the stages. toString() reports every stage's queue depth and
+ * latency.
+ */
+public class StagedPipeline implements NetworkHandler {
+	private final MessageHandler handler;
+	private final ThreadPool executePool;
+	private final boolean persistent;
+	private final Stage read;
+	private final Stage write;
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong executeNanos = new AtomicLong();
+
+	// Runs requests from persistent connections through the execute and write stages
+	private final MessageHandler staged = new MessageHandler() {
+		public void handleMessage(KVMessage request, KVResponder responder) {
+			execute(request, responder);
+		}
+	};
+
+	/**
+	 * @param handler runs the requests
+	 * @param executePool the handler's pool, only read for its metrics; may be null
+	 * @param persistent whether tagged requests open persistent connections, as
+	 *        they do for the handler when it reads connections itself
+	 * @param readThreads threads reading and parsing requests
+	 * @param writeThreads threads serializing and writing responses
+	 * @param queueCapacity most tasks waiting in the read or write stage
+	 */
+	public StagedPipeline(MessageHandler handler, ThreadPool executePool, boolean persistent,
+			int readThreads, int writeThreads, int queueCapacity) {
+		this.handler = handler;
+		this.executePool = executePool;
+		this.persistent = persistent;
+		read = new Stage("read", readThreads, queueCapacity);
+		write = new Stage("write", writeThreads, queueCapacity);
+	}
+
+	/**
+	 * A pipeline sized by -Dkv.readThreads, -Dkv.writeThreads (4 each) and
+	 * -Dkv.stageQueueCapacity (1024)
+	 */
+	public static StagedPipeline fromProperties(MessageHandler handler, ThreadPool executePool,
+			boolean persistent) {
+		return new StagedPipeline(handler, executePool, persistent,
+				Integer.getInteger("kv.readThreads", 4),
+				Integer.getInteger("kv.writeThreads", 4),
+				Integer.getInteger("kv.stageQueueCapacity", 1024));
+	}
+
+	@Override
+	public void handle(final Socket client) throws IOException {
+		read.submit(new Runnable() {
+			public void run() {
+				readRequest(client);
+			}
+		});
+	}
+
+	private void readRequest(Socket client) {
+		KVMessage request;
+		try {
+			request = KVMessage.receive(client.getInputStream());
+		} catch (KVException e) {
+			respond(new OneShotResponder(client, false), e.getMsg());
+			return;
+		} catch (IOException e) {
+			try {
+				client.close();
+			} catch (IOException ignored) {
+			}
+			return;
+		}
+		if (persistent && FramedConnectionReader.serveIfPersistent(client, request, staged)) {
+			return;
+		}
+		execute(request, new OneShotResponder(client, request.isBinary()));
+	}
+
+	private void execute(KVMessage request, KVResponder responder) {
+		handler.handleMessage(request, new StageResponder(responder, System.nanoTime()));
+	}
+
+	private void respond(final KVResponder responder, final KVMessage response) {
+		write.submit(new Runnable() {
+			public void run() {
+				try {
+					responder.respond(response);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Times the execute stage, from hand-off to the handler until its
+	 * response, and moves the response on to the write stage
+	 */
+	private class StageResponder implements KVResponder {
+		private final KVResponder responder;
+		private final long dispatched;
+
+		StageResponder(KVResponder responder, long dispatched) {
+			this.responder = responder;
+			this.dispatched = dispatched;
+		}
+
+		public void respond(KVMessage response) throws IOException {
+			executed.incrementAndGet();
+			executeNanos.addAndGet(System.nanoTime() - dispatched);
+			StagedPipeline.this.respond(responder, response);
+		}
+
+		public InetAddress getRemoteAddress() {
+			return responder.getRemoteAddress();
+		}
+	}
+
+	@Override
+	public String toString() {
+		long n = executed.get();
+		String execute = String.format("execute: %s latencyMs=%.2f",
+				(executePool == null) ? "" : "queued=" + executePool.getQueueDepth()
+						+ " active=" + executePool.getActiveCount() + " avgWaitMs="
+						+ String.format("%.2f", executePool.getAverageWaitMillis()),
+				(n == 0) ? 0 : executeNanos.get() / 1e6 / n);
+		return read + " | " + execute + " | " + write;
+	}
+
+	/**
+	 * One stage: a bounded pool that blocks submitters when full, and how
+	 * long tasks wait for and spend on its threads
+	 */
+	static class Stage {
+		private final String name;
+		private final ThreadPool pool;
+		private final AtomicLong serviced = new AtomicLong();
+		private final AtomicLong serviceNanos = new AtomicLong();
+
+		Stage(String name, int threads, int queueCapacity) {
+			this.name = name;
+			pool = new ThreadPool(threads, threads, queueCapacity, ThreadPool.RejectionPolicy.BLOCK);
+		}
+
+		void submit(final Runnable task) {
+			try {
+				pool.addToQueue(new Runnable() {
+					public void run() {
+						long start = System.nanoTime();
+						try {
+							task.run();
+						} finally {
+							serviceNanos.addAndGet(System.nanoTime() - start);
+							serviced.incrementAndGet();
+						}
+					}
+				});
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public String toString() {
+			long n = serviced.get();
+			return String.format("%s: queued=%d active=%d avgWaitMs=%.2f avgServiceMs=%.2f",
+					name, pool.getQueueDepth(), pool.getActiveCount(), pool.getAverageWaitMillis(),
+					(n == 0) ? 0 : serviceNanos.get() / 1e6 / n);
+		}
+	}
+}
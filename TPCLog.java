@@ -29,6 +29,7 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -50,19 +51,39 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 		this.keyServer = keyServer;
 	}
 
-	public ArrayList<KVMessage> getEntries() {
-		return entries;
+	/**
+	 * @return a copy of the entries, safe to read while others are appended
+	 */
+	public synchronized ArrayList<KVMessage> getEntries() {
+		return new ArrayList<KVMessage>(entries);
 	}
 
-	public boolean empty() {
+	public synchronized boolean empty() {
 		return (entries.size() == 0);
 	}
 	
-	public void appendAndFlush(KVMessage entry) {
+	/**
+	 * Appends entry and rewrites the log. Synchronized, like the rest of
+	 * the log, because the slave may handle several 2PC messages at once.
+	 * 
+	 * Over a durable store a commit or abort is a checkpoint instead: the
+	 * store has already forced the operation's writes, so the operation's
+	 * entries are dropped and the log only ever holds undecided operations.
+	 */
+	public synchronized void appendAndFlush(KVMessage entry) {
 		if (entries == null){
 			loadFromDisk();
 		}
-		entries.add(entry);
+		String type = entry.getType();
+		if (keyServer.isDurable() && (type.equals("commit") || type.equals("abort"))) {
+			for (int i = entries.size() - 1; i >= 0; i--) {
+				if (entries.get(i).getId().equals(entry.getId())) {
+					entries.remove(i);
+				}
+			}
+		} else {
+			entries.add(entry);
+		}
 		flushToDisk();
 	}
 
@@ -71,7 +92,7 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
      * loadFromDisk is called in rebuild KeyServer
 	 */
 	@SuppressWarnings("unchecked")
-	public void loadFromDisk() {
+	public synchronized void loadFromDisk() {
 		ObjectInputStream inputStream = null;
 		try {
 			inputStream = new ObjectInputStream(new FileInputStream(logPath));			
@@ -96,21 +117,31 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 	}
 	
 	/**
-	 * Writes log to persistent storage
+	 * Writes log to persistent storage. The log is written to a temporary
+	 * file, forced to disk and renamed over the old one, so a crash leaves
+	 * either the old log or the new one.
 	 */
-	public void flushToDisk() {
-		ObjectOutputStream outputStream = null;
+	public synchronized void flushToDisk() {
+		File tmp = new File(logPath + ".tmp");
+		FileOutputStream fileStream = null;
 		
 		try {
-			outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
+			fileStream = new FileOutputStream(tmp);
+			ObjectOutputStream outputStream = new ObjectOutputStream(fileStream);
 			outputStream.writeObject(entries);
+			outputStream.flush();
+			fileStream.getFD().sync();
+			fileStream.close();
+			fileStream = null;
+			if (!tmp.renameTo(new File(logPath))) {
+				throw new IOException("Could not replace " + logPath);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
 			try {
-				if (outputStream != null) {
-					outputStream.flush();
-					outputStream.close();
+				if (fileStream != null) {
+					fileStream.close();
 				}
 			} catch (IOException e) {				
 				e.printStackTrace();
@@ -122,9 +153,16 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
 	 * Load log and rebuild by iterating over log entries 
 	 * @throws KVException
 	 */
-	public void rebuildKeyServer() {
+	public synchronized void rebuildKeyServer() {
 		loadFromDisk();
 		
+		// A store that forces its writes already holds every committed
+		// operation, and its log holds only undecided ones. Any other store
+		// may have lost acknowledged writes in a crash; replaying every
+		// commit in order brings it back to the log's state.
+		if ( keyServer.isDurable() )
+			return;
+		
 		for ( int i=0; i<entries.size(); i++ )
 		{
 			KVMessage msg = entries.get(i);
@@ -145,25 +183,32 @@ public class TPCLog<K extends Serializable, V extends Serializable> {
         	if( operation==null )
         		break;
 			
-			while (true){
-				try{
-					K key = (K) operation.getKey();
-					V val = (V) operation.getValue();
-					
-					String otype = operation.getMsg();
-					
-					if (otype.equals("putreq")){ keyServer.put(key, val); }
-					if (otype.equals("getreq")){ keyServer.get(key); }
-					if (otype.equals("delreq")){ keyServer.del(key); }
-					break;
-					
-				} catch (KVException e){
-					if( !e.getMsg().getMsg().equals("IO Error") )
-		        		break;
+			if ( operation.getEntries()!=null ){
+				String otype = operation.getMsg().equals("mputreq") ? "putreq" : "delreq";
+				for (KVMessage.Entry entry : operation.getEntries()) {
+					replay(otype, (K) entry.getKey(), (V) entry.getPayload());
 				}
+			} else {
+				replay(operation.getMsg(), (K) operation.getKey(), (V) operation.getPayload());
 			}
 		}
 		
 	}
 	
+	// Retries an operation until it succeeds or fails for a reason other than IO
+	private void replay(String otype, K key, V val) {
+		while (true){
+			try{
+				if (otype.equals("putreq")){ keyServer.put(key, val); }
+				if (otype.equals("getreq")){ keyServer.get(key); }
+				if (otype.equals("delreq")){ keyServer.del(key); }
+				break;
+				
+			} catch (KVException e){
+				if( !e.getMsg().getMsg().equals("IO Error") )
+	        		break;
+			}
+		}
+	}
+	
 }
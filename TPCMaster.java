@@ -33,13 +33,22 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
-import javax.xml.parsers.ParserConfigurationException;
-import org.xml.sax.SAXException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TPCMaster<K extends Serializable, V extends Serializable> {
 
@@ -58,7 +67,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		}
 
 		public TPCRegistrationHandler(int connections) {
-			threadpool = new ThreadPool(connections);
+			threadpool = ThreadPool.forRequests(connections);
 		}
 
 		@Override
@@ -86,7 +95,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 				KVMessage regResp = null;
 				try {
 					in = clientSocket.getInputStream();
-					response = new KVMessage(in);
+					response = KVMessage.receive(in);
 					String infoString = response.getMsg();
 				
 					// Create a new slaveInfo (might throw unparseable error)
@@ -104,10 +113,8 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 
 				// Return a Registration ACK back to Slave server
 				try {
-					String message = regResp.toXML();
 					DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-
-					out.write(message.getBytes());
+					regResp.send(out, response != null && response.isBinary());
 
 					clientSocket.shutdownOutput();
 					clientSocket.close();
@@ -173,7 +180,51 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 	private static final int TIMEOUT_MILLISECONDS = 5000;
 
 	// Cache stored in the Master/Coordinator Server
-	private KVCache<K, V> masterCache = new KVCache<K,V>(1000);
+	private KeyValueInterface<K, V> masterCache = new KVTinyLFUCache<K,V>(1000);
+
+	// Keys that both replicas reported as absent, kept for a short time
+	private static final int NEGATIVE_CACHE_SIZE = 10000;
+	private static final long NEGATIVE_CACHE_TTL_MILLISECONDS = 5000;
+	static final String KEY_ABSENT = "Does not exist";
+	private KVNegativeCache<K> negativeCache =
+			new KVNegativeCache<K>(NEGATIVE_CACHE_SIZE, NEGATIVE_CACHE_TTL_MILLISECONDS);
+
+	/**
+	 * A slave fetch for a key missing from masterCache, shared by every
+	 * handleGet that misses on the key while it is running
+	 */
+	private static class Flight<V> {
+		final CountDownLatch done = new CountDownLatch(1);
+		V value;
+		KVException error;
+		// Both replicas reported that the key does not exist
+		boolean absent = false;
+		// Set by a committed write; the fetched value may then be stale
+		boolean invalidated = false;
+	}
+
+	// Fetches currently running, by key
+	private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<K, Flight<V>>();
+
+	/**
+	 * How long a client near cache may serve a value without hearing from
+	 * the master. A getreq whose Message is a "host:port" endpoint gets a
+	 * lease on the key; until it expires, a committed put/del on the key
+	 * sends an "invalidate" message to that endpoint.
+	 */
+	public static final long LEASE_MILLISECONDS = 10000;
+
+	// Endpoint -> lease expiry, by key
+	private final ConcurrentHashMap<K, ConcurrentHashMap<String, Long>> leases =
+			new ConcurrentHashMap<K, ConcurrentHashMap<String, Long>>();
+	private final AtomicInteger leasesGranted = new AtomicInteger();
+	private static final int LEASE_SWEEP_INTERVAL = 1024;
+
+	// Connections to the slaves, kept open across operations
+	private KVConnectionPool slaveConnections = new KVConnectionPool(4, 60000);
+
+	// Sends invalidations so that commits do not wait for near caches
+	private final ThreadPool invalidationPool = new ThreadPool(2);
 
 	// Registration server that uses TPCRegistrationHandler
 	private SocketServer regServer = null;
@@ -220,6 +271,35 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		return keyStr;
 	}
 
+	/**
+	 * Replace the cache in front of the slaves. Call before run().
+	 * @param cache e.g. a KVCache, a KVClockCache or a KVTinyLFUCache (the default)
+	 */
+	public void setMasterCache(KeyValueInterface<K, V> cache) {
+		masterCache = cache;
+	}
+
+	/**
+	 * Replace the cache of absent keys. Call before run().
+	 * @param cache a KVNegativeCache; one with a ttl of 0 disables negative caching
+	 */
+	public void setNegativeCache(KVNegativeCache<K> cache) {
+		negativeCache = cache;
+	}
+
+	/**
+	 * Replace the pool of connections to the slaves. Call before run().
+	 * @param pool a KVConnectionPool; by default up to 4 connections per
+	 *        slave, closed after a minute unused
+	 */
+	public void setSlaveConnectionPool(KVConnectionPool pool) {
+		slaveConnections = pool;
+	}
+
+	public KVConnectionPool getSlaveConnectionPool() {
+		return slaveConnections;
+	}
+
 	/**
 	 * Calculates tpcOpId to be used for an operation. In this implementation it
 	 * is a long variable that increases by one for each 2PC operation.
@@ -353,7 +433,7 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			
 			/* Retrieve key and value from msg */
 			K key = (K) msg.getKey();
-	    	V value = (V) msg.getValue();	    	
+	    	V value = (V) msg.getPayload();	    	
 	    	
 			/* Set up slaves 1 and 2 given the key */
 			SlaveInfo slave1 = findFirstReplica(key);
@@ -401,10 +481,110 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 				throw new KVException( new KVMessage("resp", totalErrorMsg) );
 			}
 			
-			/* Update corresponding entry in cache */
-			if( isPutReq )	{ masterCache.put(key, value); }
-					else	{ masterCache.del(key); }
-			
+			afterCommit(key, value, isPutReq);
+			return true;
+		}
+		catch( InterruptedException e ){
+			throw new KVException( new KVMessage("resp", "Unknown Error! Please try again later.") );
+		}
+	}
+
+	/**
+	 * Synchronized method to perform a multi-key put or del as a single 2PC
+	 * operation: either every key is written on both of its replicas or
+	 * none is. The keys are grouped by slave, and each slave involved gets
+	 * one mputreq/mdelreq holding only the keys it stores (as primary or
+	 * secondary), instead of one request per key.
+	 * 
+	 * @param msg mputreq or mdelreq whose entries are the keys (and values)
+	 * @param isPutReq
+	 * @return True if the TPC operation has succeeded
+	 * @throws KVException if any slave aborts, with the errors of all of them
+	 */
+	public synchronized boolean performMultiTPCOperation(KVMessage msg, boolean isPutReq) throws KVException {
+
+		if (isPutReq && !msg.getType().equals("mputreq"))	{ return false; }
+		if (!isPutReq && !msg.getType().equals("mdelreq"))	{ return false; }
+		List<KVMessage.Entry> entries = msg.getEntries();
+		if (entries == null || entries.isEmpty()) {
+			return true;
+		}
+
+		try{
+			String opID = getNextTpcOpId();
+
+			/* Give each slave the entries it is a replica for */
+			Map<Long, SlaveInfo> slaves = new LinkedHashMap<Long, SlaveInfo>();
+			Map<Long, List<KVMessage.Entry>> subBatches = new LinkedHashMap<Long, List<KVMessage.Entry>>();
+			for (KVMessage.Entry entry : entries) {
+				List<SlaveInfo> replicas = new ArrayList<SlaveInfo>(2);
+				replicas.add(findFirstReplica((K) entry.getKey()));
+				replicas.add(findSuccessor(replicas.get(0)));
+				for (SlaveInfo slave : replicas) {
+					if (slave == null) {
+						continue;
+					}
+					List<KVMessage.Entry> subBatch = subBatches.get(slave.getSlaveID());
+					if (subBatch == null) {
+						subBatch = new ArrayList<KVMessage.Entry>();
+						subBatches.put(slave.getSlaveID(), subBatch);
+						slaves.put(slave.getSlaveID(), slave);
+					}
+					if (subBatch.isEmpty() || subBatch.get(subBatch.size() - 1) != entry) {
+						subBatch.add(entry);
+					}
+				}
+			}
+
+			/* Send each slave its mputreq/mdelreq, and await the votes */
+			List<SlaveInfo> involved = new ArrayList<SlaveInfo>(slaves.values());
+			List<ExchangeRequestRunnable> requests = new ArrayList<ExchangeRequestRunnable>();
+			Thread[] threads = new Thread[involved.size()];
+			for (int i = 0; i < involved.size(); i++) {
+				KVMessage subMsg = new KVMessage(msg.getType());
+				subMsg.setEntries(subBatches.get(involved.get(i).getSlaveID()));
+				requests.add(new ExchangeRequestRunnable(opID, involved.get(i), subMsg));
+				threads[i] = new Thread(requests.get(i));
+				threads[i].start();
+			}
+			boolean aborting = false;
+			String[] errorMsgs = new String[involved.size()];
+			for (int i = 0; i < involved.size(); i++) {
+				threads[i].join();
+				errorMsgs[i] = requests.get(i).getErrorMessage();
+				aborting |= !requests.get(i).getResponse();
+			}
+
+			/* Send commit/abort decision to every slave involved */
+			List<ExchangeDecisionRunnable> decisions = new ArrayList<ExchangeDecisionRunnable>();
+			for (int i = 0; i < involved.size(); i++) {
+				decisions.add(new ExchangeDecisionRunnable(opID, involved.get(i), aborting));
+				threads[i] = new Thread(decisions.get(i));
+				threads[i].start();
+			}
+			for (int i = 0; i < involved.size(); i++) {
+				threads[i].join();
+				if (!decisions.get(i).getErrorMessage().equals("")) {
+					errorMsgs[i] = decisions.get(i).getErrorMessage();
+				}
+			}
+
+			/* Throw exception if aborting */
+			if( aborting ){
+				String totalErrorMsg = "";
+				for (int i = 0; i < involved.size(); i++) {
+					if (errorMsgs[i].equals("")) {
+						continue;
+					}
+					if( !totalErrorMsg.equals("") ){ totalErrorMsg += "\n"; }
+					totalErrorMsg += "@" + involved.get(i).getSlaveID() + "=>" + errorMsgs[i];
+				}
+				throw new KVException( new KVMessage("resp", totalErrorMsg) );
+			}
+
+			for (KVMessage.Entry entry : entries) {
+				afterCommit((K) entry.getKey(), (V) entry.getPayload(), isPutReq);
+			}
 			return true;
 		}
 		catch( InterruptedException e ){
@@ -412,6 +592,25 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		}
 	}
 
+	/**
+	 * Brings the caches in line with a committed put or del of key
+	 */
+	private void afterCommit(K key, V value, boolean isPutReq) throws KVException {
+		/* Keep fetches that started before the commit out of the cache */
+		Flight<V> flight = inFlight.remove(key);
+		if( flight!=null ){
+			synchronized(flight){ flight.invalidated = true; }
+		}
+		negativeCache.del(key);
+		
+		/* Update corresponding entry in cache */
+		if( isPutReq )	{ masterCache.put(key, value); }
+				else	{ masterCache.del(key); }
+		
+		/* Tell near caches holding a lease on the key */
+		revokeLeases(key);
+	}
+
 	private class ExchangeRequestRunnable implements Runnable
 	{
 		boolean ready;
@@ -433,28 +632,10 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			
 			while (true) {	// Retry until successful transmission of putreq/delreq
 				try {
-					Socket slaveSocket = new Socket(slave.getHostName(), slave.getPort());
-					KVMessage response;
-					
 					msg.setId(opID);
 					
-					DataOutputStream out = new DataOutputStream( slaveSocket.getOutputStream() );
-					out.writeBytes( msg.toXML() );
-					slaveSocket.shutdownOutput();
-					
-					TimeoutRunnable tr = new TimeoutRunnable(slaveSocket);
-					Thread timeoutThread = new Thread(tr);
-					timeoutThread.start();
-					timeoutThread.join(TIMEOUT_MILLISECONDS);
-					
-					slaveSocket.close();
-					tr.throwException();
-					response = tr.getResponse();
-					
-					if (!tr.isDone()){
-						errorMessage = "Timeout Error: SlaveServer "+slave.getSlaveID() +" has timed out during the first phase of 2PC";
-						return;
-					}
+					KVMessage response = slaveConnections.request(slave.getHostName(), slave.getPort(),
+							msg, TIMEOUT_MILLISECONDS);
 					
 					if( response.getType().equals("ready") ){
 						ready = true;
@@ -467,17 +648,9 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 					return;
 				}
 				catch (IOException e) { continue; }
-				catch (ParserConfigurationException e) {
-					errorMessage = "Unknown Error: ParserConfigurationException";
-					return;
-				}
-				catch (SAXException e) {
-					errorMessage = "Unknown Error: SAXException";
+				catch (TimeoutException e) {
+					errorMessage = "Timeout Error: SlaveServer "+slave.getSlaveID() +" has timed out during the first phase of 2PC";
 					return;
-				}
-				catch (KVException e) {
-					errorMessage = e.getMsg().getMsg();
-		 			return;
 				} catch (Exception e) {
 					errorMessage = "Unknown Error! Please try again later.";
 					return;
@@ -516,28 +689,13 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 			 
 			while (true) {	// Retry until successful transmission of commit/abort
 				try {
-					Socket slaveSocket = new Socket(slave.getHostName(), slave.getPort());
 					KVMessage requestMsg, response;
 
 					if (aborting)	{ requestMsg = new KVMessage("abort", null, opID); }
 							else 	{ requestMsg = new KVMessage("commit", null, opID); }
 
-					DataOutputStream out = new DataOutputStream( slaveSocket.getOutputStream() );
-					out.writeBytes( requestMsg.toXML() );
-					slaveSocket.shutdownOutput();
-					
-					TimeoutRunnable tr = new TimeoutRunnable(slaveSocket);
-					Thread timeoutThread = new Thread(tr);
-					timeoutThread.start();
-					timeoutThread.join(TIMEOUT_MILLISECONDS);
-					
-					tr.throwException();
-					response = tr.getResponse();
-					
-					if (!tr.isDone()){
-						continue;
-					}
-					slaveSocket.close();
+					response = slaveConnections.request(slave.getHostName(), slave.getPort(),
+							requestMsg, TIMEOUT_MILLISECONDS);
 					
 					if( !response.getType().equals("ack") ){
 						errorMessage = response.getMsg();
@@ -545,18 +703,8 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 					return;
 				}
 				catch (IOException e) { continue; }
-				catch (ParserConfigurationException e) {
-					errorMessage = "Unknown Error: ParserConfigurationException";
-					return;
-				}
-				catch (SAXException e) {
-					errorMessage = "Unknown Error: SAXException";
-					return;
-				}
-			 	catch (KVException e) {
-					errorMessage = e.getMsg().getMsg();
-					return;
-				} catch (Exception e) {
+				catch (TimeoutException e) { continue; }
+				catch (Exception e) {
 					errorMessage = "Unknown Error! Please try again later.";
 					return;
 				}
@@ -568,47 +716,12 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		}
 	}
 	
-	private class TimeoutRunnable implements Runnable {
-		
-		Socket slaveSocket;
-		KVMessage response;
-		Exception runnableException;
-		boolean done;
-		
-		public TimeoutRunnable(Socket slaveSocket){
-			this.slaveSocket = slaveSocket;
-			done = false;
-		}
-		public void run(){
-			
-			try {
-				response = new KVMessage( slaveSocket.getInputStream() );
-				done = true;
-			} catch (Exception e) {
-				runnableException = e;
-			}
-		}
-		
-		public void throwException() throws Exception{
-			if (runnableException != null)
-				throw runnableException;
-		}
-		public KVMessage getResponse(){
-			return response;
-		}
-		public boolean isDone(){
-			return done;
-		}
-	}
-	
-	
-	
 	/**
-	 * Perform GET operation in the following manner: - Try to GET from
-	 * first/primary replica - If primary succeeded, return Value - If primary
-	 * failed, try to GET from the other replica - If secondary succeeded,
-	 * return Value - If secondary failed, return KVExceptions from both
-	 * replicas
+	 * Perform GET operation, going to the replicas only on a cache miss.
+	 * Concurrent misses on the same key share a single fetch: the first one
+	 * fetches and populates the cache, the others wait for its result.
+	 * A key that both replicas reported as absent is answered from
+	 * negativeCache until it expires or the key is written.
 	 * 
 	 * @param msg
 	 *            Message containing Key to get
@@ -624,45 +737,208 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 
 		K key = (K) msg.getKey();
 		
+		/* Lease before reading, so that any later commit invalidates the copy */
+		if (msg.getMsg() != null) {
+			grantLease(key, msg.getMsg());
+		}
+		
 		/* Try our cache */
 		V value = masterCache.get(key);
 		if (value != null) {
 			return value;
 		}
+		String absentError = negativeCache.get(key);
+		if (absentError != null) {
+			throw new KVException( new KVMessage("resp", absentError) );
+		}
+
+		/* Join a fetch of this key that is already running */
+		Flight<V> flight = new Flight<V>();
+		Flight<V> running = inFlight.putIfAbsent(key, flight);
+		if( running!=null ){
+			try {
+				running.done.await();
+			} catch (InterruptedException e) {
+				throw new KVException( new KVMessage("resp", "Unknown Error! Please try again later.") );
+			}
+			if( running.error!=null ){
+				throw running.error;
+			}
+			return running.value;
+		}
+
+		/* Lead the fetch */
+		try {
+			try {
+				value = fetchFromReplicas(key, flight);
+				flight.value = value;
+			} catch (KVException e) {
+				flight.error = e;
+			}
+			synchronized(flight){
+				if( !flight.invalidated ){
+					if( flight.error==null && value!=null ){
+						masterCache.put(key, value);
+					} else if( flight.error!=null && flight.absent ){
+						negativeCache.put(key, flight.error.getMsg().getMsg());
+					}
+				}
+			}
+			if( flight.error!=null ){
+				throw flight.error;
+			}
+			return value;
+		} finally {
+			inFlight.remove(key, flight);
+			flight.done.countDown();
+		}
+	}
+
+	/**
+	 * Records that the near cache listening on endpoint may hold key for
+	 * LEASE_MILLISECONDS. Expired leases are swept every LEASE_SWEEP_INTERVAL grants.
+	 */
+	private void grantLease(K key, String endpoint) {
+		ConcurrentHashMap<String, Long> holders = leases.get(key);
+		if (holders == null) {
+			ConcurrentHashMap<String, Long> created = new ConcurrentHashMap<String, Long>();
+			holders = leases.putIfAbsent(key, created);
+			if (holders == null) {
+				holders = created;
+			}
+		}
+		long now = System.currentTimeMillis();
+		holders.put(endpoint, now + LEASE_MILLISECONDS);
+
+		if (leasesGranted.incrementAndGet() % LEASE_SWEEP_INTERVAL == 0) {
+			for (Entry<K, ConcurrentHashMap<String, Long>> entry : leases.entrySet()) {
+				for (Entry<String, Long> lease : entry.getValue().entrySet()) {
+					if (lease.getValue() < now) {
+						entry.getValue().remove(lease.getKey(), lease.getValue());
+					}
+				}
+				if (entry.getValue().isEmpty()) {
+					leases.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends an invalidation of key to every endpoint with an unexpired
+	 * lease on it; called after the write is committed and cached.
+	 */
+	private void revokeLeases(final K key) {
+		ConcurrentHashMap<String, Long> holders = leases.remove(key);
+		if (holders == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Entry<String, Long> lease : holders.entrySet()) {
+			if (lease.getValue() < now) {
+				continue;
+			}
+			final String endpoint = lease.getKey();
+			final long expires = lease.getValue();
+			try {
+				invalidationPool.addToQueue(new Runnable() {
+					public void run() {
+						// Past its lease the near cache has dropped the key already
+						if (System.currentTimeMillis() <= expires) {
+							sendInvalidation(endpoint, key);
+						}
+					}
+				});
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void sendInvalidation(String endpoint, K key) {
+		int colon = endpoint.lastIndexOf(':');
+		if (colon < 0) {
+			return;
+		}
+		Socket socket = null;
+		try {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(endpoint.substring(0, colon),
+					Integer.parseInt(endpoint.substring(colon + 1))), TIMEOUT_MILLISECONDS);
+			socket.setSoTimeout(TIMEOUT_MILLISECONDS);
+			KVMessage invalidation = new KVMessage("invalidate", key, false);
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			invalidation.send(out, true);
+			socket.shutdownOutput();
+		} catch (Exception e) {
+			// The client is gone; its lease runs out on its own
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends request to slave over a pooled connection and waits for the
+	 * response, however long it takes.
+	 * 
+	 * @throws KVException carrying a Network Error if the slave could not be reached
+	 */
+	private KVMessage exchange(SlaveInfo slave, KVMessage request) throws KVException {
+		try {
+			return slaveConnections.request(slave.getHostName(), slave.getPort(), request, 0);
+		} catch (ConnectException e) {
+			throw new KVException( new KVMessage("resp", "Network Error: Could not create socket") );
+		} catch (IOException e) {
+			throw new KVException( new KVMessage("resp", "Network Error: Could not receive data") );
+		} catch (TimeoutException e) {
+			throw new KVException( new KVMessage("resp", "Network Error: Could not receive data") );
+		} catch (InterruptedException e) {
+			throw new KVException( new KVMessage("resp", "Unknown Error! Please try again later.") );
+		}
+	}
+
+	/**
+	 * Perform GET on the replicas in the following manner: - Try to GET from
+	 * first/primary replica - If primary succeeded, return Value - If primary
+	 * failed, try to GET from the other replica - If secondary succeeded,
+	 * return Value - If secondary failed, return KVExceptions from both
+	 * replicas
+	 * 
+	 * @param key
+	 *            Key to get
+	 * @param flight
+	 *            marked absent if both replicas say the key does not exist
+	 * @return Value corresponding to the Key
+	 * @throws KVException
+	 */
+	private V fetchFromReplicas(K key, Flight<V> flight) throws KVException {
+
+		V value = null;
+		int absentReplies = 0;
 
 		/* Try to GET from first/primary replica */
 		String totalErrorMsg = "";
 		SlaveInfo slave = findFirstReplica(key);
 		if( slave==null )
 			return null;
-		Socket slaveSocket = null;
 		try{
-			slaveSocket = new Socket(slave.getHostName(), slave.getPort());
-			KVMessage requestMsg = new KVMessage("getreq", key, false);
-			DataOutputStream out = new DataOutputStream( slaveSocket.getOutputStream() );
-			out.writeBytes( requestMsg.toXML() );
-			slaveSocket.shutdownOutput();
-			KVMessage response = new KVMessage( slaveSocket.getInputStream() );
+			KVMessage response = exchange(slave, new KVMessage("getreq", key, false));
 			if( response.getMsg()!=null ){
 				throw new KVException(response);
 			}
-			value = (V) response.getValue();
-			slaveSocket.close();
+			value = (V) response.getPayload();
 		} catch (KVException e) {
+			if( KEY_ABSENT.equals(e.getMsg().getMsg()) ){ absentReplies++; }
 			totalErrorMsg += "@" + slave.getSlaveID() + "=>" + e.getMsg().getMsg();
-		} catch( IOException e ){
-			if( slaveSocket==null ){
-				totalErrorMsg += "@" + slave.getSlaveID() + "=>" + "Network Error: Could not create socket";	
-			} else if( slaveSocket.isOutputShutdown() ){
-				totalErrorMsg += "@" + slave.getSlaveID() + "=>" + "Network Error: Could not receive data";
-			} else{
-				totalErrorMsg += "@" + slave.getSlaveID() + "=>" + "Network Error: Could not send data";
-			}
 		}
 		
 		/* Primary succeeded */
 		if (value != null && !value.equals(KVMessage.encodeObject(null))) {
-			masterCache.put(key, value);
 			return value;
 		}
 
@@ -670,38 +946,259 @@ public class TPCMaster<K extends Serializable, V extends Serializable> {
 		slave = findSuccessor(slave);
 		if( slave==null )
 			return null;
-		slaveSocket = null;
 		try{
-			slaveSocket = new Socket(slave.getHostName(), slave.getPort());
-			KVMessage requestMsg = new KVMessage("getreq", key, false);
-			DataOutputStream out = new DataOutputStream( slaveSocket.getOutputStream() );
-			out.writeBytes( requestMsg.toXML() );
-			slaveSocket.shutdownOutput();
-			KVMessage response = new KVMessage( slaveSocket.getInputStream() );
+			KVMessage response = exchange(slave, new KVMessage("getreq", key, false));
 			if( response.getMsg()!=null ){
 				throw new KVException(response);
 			}
-	    	value = (V) response.getValue();
-			slaveSocket.close();
+	    	value = (V) response.getPayload();
 		} catch (KVException e) {
+			if( KEY_ABSENT.equals(e.getMsg().getMsg()) ){ absentReplies++; }
 			if( !totalErrorMsg.equals("") ){ totalErrorMsg += "\n"; }
 			totalErrorMsg += "@" + slave.getSlaveID() + "=>" + e.getMsg().getMsg();
-		} catch( IOException e ){
-			if( !totalErrorMsg.equals("") ){ totalErrorMsg += "\n"; }
-			if( slaveSocket==null ){
-				totalErrorMsg += "@" + slave.getSlaveID() + "=>" + "Network Error: Could not create socket";	
-			} else if( slaveSocket.isOutputShutdown() ){
-				totalErrorMsg += "@" + slave.getSlaveID() + "=>" + "Network Error: Could not receive data";
-			} else{
-				totalErrorMsg += "@" + slave.getSlaveID() + "=>" + "Network Error: Could not send data";
-			}
 		}
 		
 		if( !totalErrorMsg.equals("") ){
+			flight.absent = (absentReplies == 2);
 			throw new KVException( new KVMessage("resp", totalErrorMsg) );
 		}
 
-		masterCache.put(key, value);
 		return value;
 	}
+
+	/**
+	 * Processes a multi-key GET. Keys found in the master's caches are
+	 * answered directly; the rest are grouped by their primary replica and
+	 * each slave gets a single mgetreq for its group. Keys its primary
+	 * could not return are retried in one mgetreq to the successor.
+	 * 
+	 * @param msg mgetreq whose entries hold the keys to get
+	 * @return resp holding one entry per requested key, in request order,
+	 *         with either the value or the combined error message
+	 * @throws KVException
+	 */
+	public KVMessage handleMultiGet(KVMessage msg) throws KVException {
+
+		if (!msg.getType().equals("mgetreq")) {
+			KVMessage errorMsg = new KVMessage("resp", "handleMultiGet was given a non-mgetreq KVMessage");
+			throw new KVException(errorMsg);
+		}
+		List<KVMessage.Entry> requested = msg.getEntries();
+		if (requested == null) {
+			requested = new ArrayList<KVMessage.Entry>();
+		}
+
+		Map<K, KVMessage.Entry> results = new LinkedHashMap<K, KVMessage.Entry>();
+		Map<K, Flight<V>> led = new LinkedHashMap<K, Flight<V>>();
+		Map<Long, List<K>> misses = new LinkedHashMap<Long, List<K>>();
+		Map<Long, SlaveInfo> primaries = new LinkedHashMap<Long, SlaveInfo>();
+		Map<K, String> errors = new LinkedHashMap<K, String>();
+		Map<K, Integer> absentReplies = new LinkedHashMap<K, Integer>();
+		// Each key as the request carried it, which is the form Entries hold keys in
+		Map<K, String> wireKeys = new HashMap<K, String>();
+
+		try {
+			for (KVMessage.Entry entry : requested) {
+				K key = (K) entry.getKey();
+				if (results.containsKey(key) || errors.containsKey(key)) {
+					continue;
+				}
+				wireKeys.put(key, entry.getKey());
+				if (msg.getMsg() != null) {
+					grantLease(key, msg.getMsg());
+				}
+
+				/* Try our caches */
+				V value = masterCache.get(key);
+				if (value != null) {
+					results.put(key, new KVMessage.Entry(wireKeys.get(key), value, null));
+					continue;
+				}
+				String absentError = negativeCache.get(key);
+				if (absentError != null) {
+					results.put(key, new KVMessage.Entry(wireKeys.get(key), null, absentError));
+					continue;
+				}
+
+				/* Only a key whose fetch we lead may populate the caches */
+				Flight<V> flight = new Flight<V>();
+				if (inFlight.putIfAbsent(key, flight) == null) {
+					led.put(key, flight);
+				}
+
+				SlaveInfo slave = findFirstReplica(key);
+				if (slave == null) {
+					results.put(key, new KVMessage.Entry(wireKeys.get(key), null, null));
+					continue;
+				}
+				if (!misses.containsKey(slave.getSlaveID())) {
+					misses.put(slave.getSlaveID(), new ArrayList<K>());
+					primaries.put(slave.getSlaveID(), slave);
+				}
+				misses.get(slave.getSlaveID()).add(key);
+				errors.put(key, "");
+				absentReplies.put(key, 0);
+			}
+
+			/* One mgetreq per primary, then one per successor for the keys still missing */
+			Map<Long, List<K>> retries = new LinkedHashMap<Long, List<K>>();
+			Map<Long, SlaveInfo> successors = new LinkedHashMap<Long, SlaveInfo>();
+			for (KVMessage.Entry reply : fetchGroups(primaries, misses, wireKeys)) {
+				K key = (K) reply.getKey();
+				if (reply.getMsg() == null) {
+					results.put(key, reply);
+					errors.remove(key);
+					continue;
+				}
+				recordError(key, reply, errors, absentReplies);
+				SlaveInfo slave = findSuccessor(findFirstReplica(key));
+				if (slave == null) {
+					continue;
+				}
+				if (!retries.containsKey(slave.getSlaveID())) {
+					retries.put(slave.getSlaveID(), new ArrayList<K>());
+					successors.put(slave.getSlaveID(), slave);
+				}
+				retries.get(slave.getSlaveID()).add(key);
+			}
+			for (KVMessage.Entry reply : fetchGroups(successors, retries, wireKeys)) {
+				K key = (K) reply.getKey();
+				if (reply.getMsg() == null) {
+					results.put(key, reply);
+					errors.remove(key);
+				} else {
+					recordError(key, reply, errors, absentReplies);
+				}
+			}
+			for (Entry<K, String> error : errors.entrySet()) {
+				results.put(error.getKey(), new KVMessage.Entry(wireKeys.get(error.getKey()), null, error.getValue()));
+			}
+
+			/* Populate the caches for the keys we led, unless a commit overtook us */
+			for (Entry<K, Flight<V>> entry : led.entrySet()) {
+				K key = entry.getKey();
+				Flight<V> flight = entry.getValue();
+				KVMessage.Entry result = results.get(key);
+				if (result.getMsg() == null) {
+					flight.value = (V) result.getPayload();
+				} else {
+					flight.error = new KVException( new KVMessage("resp", result.getMsg()) );
+					flight.absent = (absentReplies.get(key) == 2);
+				}
+				synchronized(flight){
+					if( !flight.invalidated ){
+						if( flight.error==null && flight.value!=null ){
+							masterCache.put(key, flight.value);
+						} else if( flight.error!=null && flight.absent ){
+							negativeCache.put(key, result.getMsg());
+						}
+					}
+				}
+			}
+		} finally {
+			for (Entry<K, Flight<V>> entry : led.entrySet()) {
+				inFlight.remove(entry.getKey(), entry.getValue());
+				entry.getValue().done.countDown();
+			}
+		}
+
+		List<KVMessage.Entry> entries = new ArrayList<KVMessage.Entry>();
+		for (KVMessage.Entry entry : requested) {
+			entries.add(results.get((K) entry.getKey()));
+		}
+		KVMessage resp = new KVMessage("resp");
+		resp.setEntries(entries);
+		return resp;
+	}
+
+	private void recordError(K key, KVMessage.Entry reply, Map<K, String> errors, Map<K, Integer> absentReplies) {
+		if (KEY_ABSENT.equals(reply.getValue())) {
+			absentReplies.put(key, absentReplies.get(key) + 1);
+		}
+		String totalErrorMsg = errors.get(key);
+		if( !totalErrorMsg.equals("") ){ totalErrorMsg += "\n"; }
+		errors.put(key, totalErrorMsg + reply.getMsg());
+	}
+
+	/**
+	 * Sends one mgetreq per slave, in parallel, and collects the replies.
+	 * A reply with a non-null message failed on that slave; its message is
+	 * already prefixed with "@slaveID=>", and its value holds the bare
+	 * error so callers can tell a missing key from a network failure.
+	 */
+	private List<KVMessage.Entry> fetchGroups(Map<Long, SlaveInfo> slaves, Map<Long, List<K>> keys,
+			Map<K, String> wireKeys) throws KVException {
+		List<MultiGetRunnable> runnables = new ArrayList<MultiGetRunnable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (Entry<Long, SlaveInfo> slave : slaves.entrySet()) {
+			MultiGetRunnable r = new MultiGetRunnable(slave.getValue(), keys.get(slave.getKey()), wireKeys);
+			Thread thread = new Thread(r);
+			thread.start();
+			runnables.add(r);
+			threads.add(thread);
+		}
+		List<KVMessage.Entry> replies = new ArrayList<KVMessage.Entry>();
+		try {
+			for (int i = 0; i < threads.size(); i++) {
+				threads.get(i).join();
+				replies.addAll(runnables.get(i).getReplies());
+			}
+		} catch (InterruptedException e) {
+			throw new KVException( new KVMessage("resp", "Unknown Error! Please try again later.") );
+		}
+		return replies;
+	}
+
+	/**
+	 * Fetches a group of keys from a single slave with one mgetreq
+	 */
+	private class MultiGetRunnable implements Runnable
+	{
+		SlaveInfo slave;
+		List<K> keys;
+		Map<K, String> wireKeys;
+		List<KVMessage.Entry> replies;
+
+		public MultiGetRunnable(SlaveInfo slave, List<K> keys, Map<K, String> wireKeys) {
+			this.slave = slave;
+			this.keys = keys;
+			this.wireKeys = wireKeys;
+			replies = new ArrayList<KVMessage.Entry>();
+		}
+
+		public void run() {
+			String error;
+			try {
+				List<KVMessage.Entry> entries = new ArrayList<KVMessage.Entry>();
+				for (K key : keys) {
+					entries.add(new KVMessage.Entry(wireKeys.get(key), null, null));
+				}
+				KVMessage requestMsg = new KVMessage("mgetreq");
+				requestMsg.setEntries(entries);
+				KVMessage response = exchange(slave, requestMsg);
+				if (response.getEntries() == null) {
+					error = (response.getMsg() != null ? response.getMsg() : "Unknown Error: Invalid response");
+				} else {
+					for (KVMessage.Entry reply : response.getEntries()) {
+						if (reply.getMsg() == null) {
+							replies.add(reply);
+						} else {
+							replies.add(new KVMessage.Entry(reply.getKey(), reply.getMsg(),
+									"@" + slave.getSlaveID() + "=>" + reply.getMsg()));
+						}
+					}
+					return;
+				}
+			} catch (KVException e) {
+				error = e.getMsg().getMsg();
+			}
+			for (K key : keys) {
+				replies.add(new KVMessage.Entry(wireKeys.get(key), error, "@" + slave.getSlaveID() + "=>" + error));
+			}
+		}
+
+		public List<KVMessage.Entry> getReplies() {
+			return replies;
+		}
+	}
 }
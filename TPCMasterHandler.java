@@ -29,7 +29,6 @@
  */
 package edu.berkeley.cs162;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
@@ -41,7 +40,7 @@ import java.util.ArrayList;
  * Coordinator Server
  *
  */
-public class TPCMasterHandler<K extends Serializable, V extends Serializable> implements NetworkHandler {
+public class TPCMasterHandler<K extends Serializable, V extends Serializable> implements NetworkHandler, MessageHandler {
 	private KeyServer<K, V> keyserver = null;
 	private ThreadPool threadpool = null;
 	private TPCLog<K, V> tpcLog = null;
@@ -52,33 +51,51 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 
 	public TPCMasterHandler(KeyServer<K, V> keyserver, int connections) {
 		this.keyserver = keyserver;
-		threadpool = new ThreadPool(connections);	
+		threadpool = ThreadPool.forRequests(connections);	
 	}
 
 	@Override
 	public void handle(Socket client) throws IOException {
 		// implement me
 		try {
-			KVMessage response = null;
-			MHRunnable<K, V> task;
 			InputStream in = client.getInputStream();
-			response = new KVMessage(in);						
-			task = new MHRunnable<K,V>(client, keyserver, response, tpcLog);
-			threadpool.addToQueue(task);
+			KVMessage request = KVMessage.receive(in);
+			// The master tags its requests and keeps the connection open for the next ones
+			if (FramedConnectionReader.serveIfPersistent(client, request, this)) {
+				return;
+			}
+			handleMessage(request, new OneShotResponder(client, request.isBinary()));
 		} catch (KVException e) {
 			e.printStackTrace();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see edu.berkeley.cs162.MessageHandler#handleMessage(edu.berkeley.cs162.KVMessage, edu.berkeley.cs162.KVResponder)
+	 */
+	@Override
+	public void handleMessage(KVMessage request, KVResponder responder) {
+		try {
+			threadpool.addToQueue(new MHRunnable<K,V>(responder, keyserver, request, tpcLog));
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 	}
 
-	class MHRunnable<K extends Serializable, V extends Serializable> implements Runnable{
-		Socket clientSocket;
+	/**
+	 * @return the pool the requests run on, for its metrics and sizing
+	 */
+	public ThreadPool getThreadPool() {
+		return threadpool;
+	}
+
+	class MHRunnable<K extends Serializable, V extends Serializable> implements RejectableTask{
+		KVResponder responder;
 		KeyServer<K, V> keyServer;
 		KVMessage requestMsg;
 		TPCLog<K, V> log;
-		MHRunnable( Socket client, KeyServer ks, KVMessage msg,TPCLog serverlog ){
-			clientSocket = client;
+		MHRunnable( KVResponder responder, KeyServer ks, KVMessage msg,TPCLog serverlog ){
+			this.responder = responder;
 			keyServer = ks;
 			requestMsg = msg;
 			log = serverlog;
@@ -86,8 +103,7 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 		public void run() {
 			
 			K key = (K) requestMsg.getKey();
-			V value = (V) requestMsg.getValue();
-			String message;
+			V value = (V) requestMsg.getPayload();
 			String type = requestMsg.getType();
 			KVMessage response = null;
 			
@@ -111,13 +127,37 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 				// SHOULD NEVER HAPPEN
 				if( response==null ) return;
 				
-				// transfer message to XML form and sent it back to client.
+				// send the response back in the format of the request
 				try {
-					message = response.toXML();
-					DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-					out.write(message.getBytes());
-					clientSocket.shutdownOutput();
-					clientSocket.close();
+					responder.respond(response);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}	
+			}
+			
+			if (type.equals("mputreq") || type.equals("mdelreq")) {
+				// One ready entry carries the whole sub-batch of this slave
+				try {
+					KVMessage logMsg = new KVMessage("ready", type, requestMsg.getId());
+					logMsg.setEntries(requestMsg.getEntries());
+					log.appendAndFlush(logMsg);
+					response = new KVMessage("ready", null, requestMsg.getId());
+					
+					if (type.equals("mdelreq")){
+						try{
+							for (KVMessage.Entry entry : requestMsg.getEntries()) {
+								keyServer.get((K) entry.getKey());
+							}
+						}catch (KVException e) {
+							response = new KVMessage("abort", e.getMsg().getMsg(), requestMsg.getId());
+						}
+					}
+				} catch (Exception e) {
+					response = new KVMessage("abort", e.getMessage(), requestMsg.getId());
+				}
+				
+				try {
+					responder.respond(response);
 				} catch (IOException e) {
 					e.printStackTrace();
 				}	
@@ -130,32 +170,32 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 	        	
 	        	// Iterate backwards to find corresponding ready message
 	        	for( int i=entries.size()-1; i>=0; i-- ){
-	        		operation = entries.get(i);
-	        		if( operation.getId().equals(requestMsg.getId())
-	        				&& operation.getType().equals("ready"))
+	        		if( entries.get(i).getId().equals(requestMsg.getId())
+	        				&& entries.get(i).getType().equals("ready")){
+	        			operation = entries.get(i);
 	        			break;
+	        		}
 	        	}
 
-	        	// If no "ready" operation exists with the same opID, forget it
-	        	if( operation==null )
+	        	// No "ready" operation with the same opID: a resent commit whose
+	        	// operation was already applied and checkpointed, so just ack it
+	        	if( operation==null ){
+	        		try{
+	        			responder.respond(new KVMessage("ack", null, requestMsg.getId()));
+	        		} catch ( IOException e ){
+	        		}
 	        		return;
+	        	}
 	            
-	            // Get key and value for put/del
-	            key = (K) operation.getKey();
-		    	value = (V) operation.getValue();
-			    
-		    	// Keep putting / deleting until success
-			    while (true) {
-			        try {
-			            if ( operation.getMsg().equals("putreq")) { keyServer.put(key, value); }
-			            if ( operation.getMsg().equals("delreq")) { keyServer.del(key); }
-						// Success!
-			            break;
-			        } catch ( KVException e ) {
-			        	if( !e.getMsg().getMsg().equals("IO Error") )
-			        		break;
-			        }
-			    }
+	            // Apply the put/del, or every entry of an mput/mdel
+	            if ( operation.getEntries()!=null ) {
+	            	String op = operation.getMsg().equals("mputreq") ? "putreq" : "delreq";
+	            	for (KVMessage.Entry entry : operation.getEntries()) {
+	            		apply(op, (K) entry.getKey(), (V) entry.getPayload());
+	            	}
+	            } else {
+	            	apply(operation.getMsg(), (K) operation.getKey(), (V) operation.getPayload());
+	            }
 			    
 			    // Write commit message to log
 	            log.appendAndFlush(requestMsg);
@@ -163,12 +203,7 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 			    // Send ack back to master
 			    try{
 		            response = new KVMessage("ack", null, requestMsg.getId());
-					message = response.toXML();
-
-					DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-					out.write(message.getBytes());
-					clientSocket.shutdownOutput();
-					clientSocket.close();
+					responder.respond(response);
 			    } catch ( IOException e ){	// Assuming that master will resend commit msg on timeout
 		        	return;
 		        }
@@ -182,11 +217,7 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 				// Send ack back to master
 				try {
 		            response = new KVMessage("ack", null, requestMsg.getId());	
-					message = response.toXML();
-					DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-					out.write(message.getBytes());
-					clientSocket.shutdownOutput();
-					clientSocket.close();
+					responder.respond(response);
 					// Ack sent
 					
 		        } catch ( IOException e ){	// Assuming that master will resend abort msg on timeout
@@ -207,17 +238,73 @@ public class TPCMasterHandler<K extends Serializable, V extends Serializable> im
 				// SHOULD NEVER HAPPEN
 				if( response==null ) return;
 				
-				// Send XML version of response back master
+				// Send response back to master in the format of the request
 				try{
-					message = response.toXML();
-					DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream() );
-					out.write(message.getBytes());
-					clientSocket.shutdownOutput();
-					clientSocket.close();
+					responder.respond(response);
 				} catch( IOException e ){
 					e.printStackTrace();
 				}								
-			}												
+			}
+			
+			if (type.equals("mgetreq")) {
+				// One entry per key, holding either the value or the error
+				ArrayList<KVMessage.Entry> results = new ArrayList<KVMessage.Entry>();
+				for (KVMessage.Entry entry : requestMsg.getEntries()) {
+					try {
+						value = keyServer.get((K) entry.getKey());
+						results.add(new KVMessage.Entry(entry.getKey(), value, null));
+					} catch (KVException e) {
+						results.add(new KVMessage.Entry(entry.getKey(), null, e.getMsg().getMsg()));
+					}
+				}
+				response = new KVMessage("resp");
+				response.setEntries(results);
+				
+				try{
+					responder.respond(response);
+				} catch( IOException e ){
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		/**
+		 * The pool is full. A first-phase request is voted down and a get
+		 * answered with the error; a decision must not be lost, so it runs
+		 * right away on the calling thread.
+		 */
+		public void reject() {
+			String type = requestMsg.getType();
+			if (type.equals("commit") || type.equals("abort")) {
+				run();
+				return;
+			}
+			KVMessage response;
+			if (type.equals("getreq") || type.equals("mgetreq")) {
+				response = new KVMessage("resp", "Server busy");
+			} else {
+				response = new KVMessage("abort", "Server busy", requestMsg.getId());
+			}
+			try {
+				responder.respond(response);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		// Keep putting / deleting until success
+		private void apply(String op, K key, V value) {
+		    while (true) {
+		        try {
+		            if ( op.equals("putreq")) { keyServer.put(key, value); }
+		            if ( op.equals("delreq")) { keyServer.del(key); }
+					// Success!
+		            break;
+		        } catch ( KVException e ) {
+		        	if( !e.getMsg().getMsg().equals("IO Error") )
+		        		break;
+		        }
+		    }
 		}
 	}	
 	
@@ -29,15 +29,54 @@
  */
 package edu.berkeley.cs162;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
+	/**
+	 * What addToQueue does with a task when the queue is full
+	 */
+	public enum RejectionPolicy {
+		/** Wait until a worker takes a queued task */
+		BLOCK,
+		/** Reject the new task */
+		REJECT,
+		/** Reject the task that has waited longest, and queue the new one */
+		DROP_OLDEST
+	}
+
+	/** Queue capacity of a pool without a bound */
+	public static final int UNBOUNDED = Integer.MAX_VALUE;
+	/** Queue capacity of a request pool unless -Dkv.poolQueueCapacity says otherwise */
+	public static final int DEFAULT_REQUEST_QUEUE_CAPACITY = 1024;
+	/** How long a worker beyond the core size waits for a task before exiting */
+	private static final long KEEP_ALIVE_MILLISECONDS = 30000;
+
 	/**
 	 * Set of threads in the threadpool
 	 */
-	protected Thread threads[] = null;
+	protected List<WorkerThread> threads = new ArrayList<WorkerThread>();
 	protected Queue<Runnable> tasksQueue;		// queue holding all ready tasks
+	private int coreSize;
+	private int maxSize;
+	private final int queueCapacity;
+	private final RejectionPolicy policy;
+	// Guarded by tasksQueue
+	private int idleWorkers = 0;
+	private int blockedProducers = 0;
+
+	private final AtomicInteger activeWorkers = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
 	/**
 	 * Initialize the number of threads required in the threadpool. 
 	 * 
@@ -45,26 +84,306 @@ public class ThreadPool {
 	 */
 	public ThreadPool(int size)
 	{
-		threads = new Thread[size];
+		this(size, size, UNBOUNDED, RejectionPolicy.BLOCK);
+	}
+
+	/**
+	 * A pool that keeps coreSize threads, starts more up to maxSize while
+	 * tasks wait and no thread is idle, and holds at most queueCapacity
+	 * waiting tasks.
+	 * 
+	 * @param queueCapacity at least 1; a task is always queued before a
+	 *        worker takes it.
+	 * @param policy what to do with a task that does not fit in the queue.
+	 *        Only a RejectableTask can be rejected; any other task is
+	 *        queued as with BLOCK.
+	 * @throws IllegalArgumentException if queueCapacity is less than 1
+	 */
+	public ThreadPool(int coreSize, int maxSize, int queueCapacity, RejectionPolicy policy)
+	{
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be at least 1: " + queueCapacity);
+		}
+		this.coreSize = coreSize;
+		this.maxSize = Math.max(coreSize, maxSize);
+		this.queueCapacity = queueCapacity;
+		this.policy = policy;
 		tasksQueue = new LinkedList<Runnable>();
-		for( int i = 0; i < size; i++ ){
-			threads[i] = new WorkerThread( this );
-			threads[i].start();
-		}		
-		
+		synchronized (tasksQueue) {
+			for( int i = 0; i < coreSize; i++ ){
+				startWorker();
+			}
+		}
+	}
+
+	/**
+	 * Creates the pool a server handler runs its requests on. With
+	 * -Dkv.virtualThreads=true every request gets a thread of its own (see
+	 * VirtualThreadPool) and size is ignored. With -Dkv.workStealing=true
+	 * the size threads each have their own queue (see
+	 * WorkStealingThreadPool). Otherwise -Dkv.poolMaxThreads, -Dkv.poolQueueCapacity and
+	 * -Dkv.poolRejection=block|reject|drop_oldest bound the pool; by default
+	 * it has size threads and a queue of DEFAULT_REQUEST_QUEUE_CAPACITY
+	 * tasks, and blocks the submitter when the queue is full.
+	 * 
+	 * @param size  How many threads in the thread pool otherwise.
+	 * @throws IllegalArgumentException if -Dkv.poolQueueCapacity is less than 1
+	 */
+	public static ThreadPool forRequests(int size)
+	{
+		if (Boolean.getBoolean("kv.virtualThreads")) {
+			return new VirtualThreadPool();
+		}
+		if (Boolean.getBoolean("kv.workStealing")) {
+			return new WorkStealingThreadPool(size);
+		}
+		int maxSize = Integer.getInteger("kv.poolMaxThreads", size);
+		int queueCapacity = Integer.getInteger("kv.poolQueueCapacity", DEFAULT_REQUEST_QUEUE_CAPACITY);
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("-Dkv.poolQueueCapacity must be at least 1: " + queueCapacity);
+		}
+		RejectionPolicy policy = RejectionPolicy.valueOf(
+				System.getProperty("kv.poolRejection", "block").toUpperCase());
+		return new ThreadPool(size, maxSize, queueCapacity, policy);
 	}
 
 	/**
 	 * Add a job to the queue of tasks that has to be executed. As soon as a thread is available, 
-	 * it will retrieve tasks from this queue and start processing.
+	 * it will retrieve tasks from this queue and start processing. If the
+	 * queue is full, the pool's RejectionPolicy decides what happens; a
+	 * rejected RejectableTask has its reject() called on this thread.
 	 * @param r job that has to be executed asynchronously
 	 * @throws InterruptedException 
 	 */
 	public void addToQueue(Runnable r) throws InterruptedException
 	{
+		RejectableTask refused = null;
+		synchronized (tasksQueue) {
+			while (tasksQueue.size() >= queueCapacity) {
+				if (policy == RejectionPolicy.REJECT && r instanceof RejectableTask) {
+					refused = (RejectableTask) r;
+					rejected.incrementAndGet();
+					break;
+				}
+				if (policy == RejectionPolicy.DROP_OLDEST && (refused = removeOldestRejectable()) != null) {
+					dropped.incrementAndGet();
+					continue;
+				}
+				blockedProducers++;
+				try {
+					tasksQueue.wait();
+				} finally {
+					blockedProducers--;
+				}
+			}
+			if (refused != r) {
+				tasksQueue.add(new QueuedTask(r));
+				if (idleWorkers == 0 && threads.size() < maxSize) {
+					startWorker();
+				}
+				// A producer waiting for room must not swallow the wakeup meant for a worker
+				if (blockedProducers > 0) {
+					tasksQueue.notifyAll();
+				} else {
+					tasksQueue.notify();
+				}
+			}
+		}
+		if (refused != null) {
+			refused.reject();
+		}
+	}
+
+	// Guarded by tasksQueue
+	private RejectableTask removeOldestRejectable() {
+		Iterator<Runnable> it = tasksQueue.iterator();
+		while (it.hasNext()) {
+			Runnable task = ((QueuedTask) it.next()).task;
+			if (task instanceof RejectableTask) {
+				it.remove();
+				return (RejectableTask) task;
+			}
+		}
+		return null;
+	}
+
+	// Guarded by tasksQueue
+	private void startWorker() {
+		WorkerThread worker = new WorkerThread(this);
+		threads.add(worker);
+		worker.start();
+	}
+
+	/**
+	 * Waits for the next task for worker
+	 * @return the task, or null if worker should exit because the pool shrank
+	 */
+	Runnable takeTask(WorkerThread worker) {
+		synchronized (tasksQueue) {
+			while (tasksQueue.isEmpty()) {
+				if (threads.size() > maxSize) {
+					threads.remove(worker);
+					return null;
+				}
+				boolean extra = threads.size() > coreSize;
+				long start = System.currentTimeMillis();
+				idleWorkers++;
+				try {
+					tasksQueue.wait(extra ? KEEP_ALIVE_MILLISECONDS : 0);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} finally {
+					idleWorkers--;
+				}
+				if (extra && tasksQueue.isEmpty() && threads.size() > coreSize
+						&& System.currentTimeMillis() - start >= KEEP_ALIVE_MILLISECONDS) {
+					threads.remove(worker);
+					return null;
+				}
+			}
+			QueuedTask task = (QueuedTask) tasksQueue.poll();
+			if (blockedProducers > 0) {
+				tasksQueue.notifyAll();
+			}
+			long wait = System.nanoTime() - task.enqueued;
+			totalWaitNanos.addAndGet(wait);
+			long max;
+			while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) {
+			}
+			return task.task;
+		}
+	}
+
+	void beforeRun() {
+		activeWorkers.incrementAndGet();
+	}
+
+	void afterRun() {
+		activeWorkers.decrementAndGet();
+		completed.incrementAndGet();
+	}
+
+	/**
+	 * Changes the number of threads kept while idle; surplus threads exit
+	 * once they have been idle for a while.
+	 */
+	public void setCorePoolSize(int coreSize) {
 		synchronized (tasksQueue) {
-			tasksQueue.add(r);			
-			tasksQueue.notify();			
+			this.coreSize = coreSize;
+			if (maxSize < coreSize) {
+				maxSize = coreSize;
+			}
+			while (threads.size() < coreSize) {
+				startWorker();
+			}
+			tasksQueue.notifyAll();
+		}
+	}
+
+	/**
+	 * Changes the most threads the pool starts; surplus threads exit when
+	 * they next find the queue empty.
+	 */
+	public void setMaxPoolSize(int maxSize) {
+		synchronized (tasksQueue) {
+			this.maxSize = Math.max(maxSize, 1);
+			if (coreSize > this.maxSize) {
+				coreSize = this.maxSize;
+			}
+			tasksQueue.notifyAll();
+		}
+	}
+
+	public int getCorePoolSize() {
+		synchronized (tasksQueue) {
+			return coreSize;
+		}
+	}
+
+	public int getMaxPoolSize() {
+		synchronized (tasksQueue) {
+			return maxSize;
+		}
+	}
+
+	/**
+	 * @return the number of threads in the pool
+	 */
+	public int getPoolSize() {
+		synchronized (tasksQueue) {
+			return threads.size();
+		}
+	}
+
+	/**
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		synchronized (tasksQueue) {
+			return tasksQueue.size();
+		}
+	}
+
+	/**
+	 * @return the number of threads running a task
+	 */
+	public int getActiveCount() {
+		return activeWorkers.get();
+	}
+
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the number of tasks rejected because the queue was full
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of queued tasks rejected to make room for new ones
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the mean time tasks waited in the queue, in milliseconds
+	 */
+	public double getAverageWaitMillis() {
+		long done = completed.get() + activeWorkers.get();
+		return (done == 0) ? 0 : totalWaitNanos.get() / 1e6 / done;
+	}
+
+	/**
+	 * @return the longest time a task waited in the queue, in milliseconds
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("threads=%d active=%d queued=%d completed=%d rejected=%d dropped=%d avgWaitMs=%.2f maxWaitMs=%.2f",
+				getPoolSize(), getActiveCount(), getQueueDepth(), getCompletedCount(), getRejectedCount(),
+				getDroppedCount(), getAverageWaitMillis(), getMaxWaitMillis());
+	}
+
+	/**
+	 * A task with the time it was queued
+	 */
+	private static class QueuedTask implements Runnable {
+		final Runnable task;
+		final long enqueued = System.nanoTime();
+
+		QueuedTask(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			task.run();
 		}
 	}
 }
@@ -73,14 +392,14 @@ public class ThreadPool {
  * The worker threads that make up the thread pool.
  */
 class WorkerThread extends Thread {
-	Queue<Runnable> tasksQueue;
+	ThreadPool pool;
 	Runnable target;
 	/**
 	 * @param o the thread pool 
 	 */
 	WorkerThread(ThreadPool o){
 		super();
-		tasksQueue = o.tasksQueue;
+		pool = o;
 	}
 
 	/**
@@ -88,18 +407,13 @@ class WorkerThread extends Thread {
 	 */
 	public void run()
 	{
-		while(true) {
-			synchronized (tasksQueue) {
-				while (tasksQueue.isEmpty()) {
-					try {
-						tasksQueue.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-				target = tasksQueue.poll();			
+		while((target = pool.takeTask(this)) != null) {
+			pool.beforeRun();
+			try {
+				target.run();
+			} finally {
+				pool.afterRun();
 			}
-			target.run();
 		}
 	}
 }
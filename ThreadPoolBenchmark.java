@@ -0,0 +1,96 @@
+/**
+ * Throughput benchmark of the thread pools
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the shared-queue ThreadPool with the WorkStealingThreadPool at
+ * 1, 8 and 64 threads. One thread, like an accept loop, submits short
+ * tasks as fast as the pool takes them, with at most a window of tasks
+ * outstanding; each case runs for a fixed time after a warm-up of the same
+ * length and reports tasks per second.
+ * 
+ * USAGE: ThreadPoolBenchmark [seconds per case] [work per task]
+ */
+public class ThreadPoolBenchmark {
+	private static final int[] THREADS = { 1, 8, 64 };
+	private static final int WINDOW = 4096;
+
+	private static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 2;
+		int work = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+
+		System.out.println("seconds=" + seconds + " work=" + work
+				+ " cpus=" + Runtime.getRuntime().availableProcessors());
+		System.out.printf("%-16s%10s%16s%n", "pool", "threads", "tasks/s");
+		for (int threads : THREADS) {
+			report("shared queue", new ThreadPool(threads), threads, seconds, work);
+			report("work stealing", new WorkStealingThreadPool(threads), threads, seconds, work);
+		}
+		System.exit(0);
+	}
+
+	private static void report(String name, ThreadPool pool, int threads, int seconds, int work)
+			throws InterruptedException {
+		measure(pool, seconds * 1000L, work);	// warm up
+		long tasks = measure(pool, seconds * 1000L, work);
+		System.out.printf("%-16s%10d%16.0f%n", name, threads, tasks / (double) seconds);
+	}
+
+	private static long measure(ThreadPool pool, long millis, final int work) throws InterruptedException {
+		final AtomicLong done = new AtomicLong();
+		Runnable task = new Runnable() {
+			public void run() {
+				long x = 0;
+				for (int i = 0; i < work; i++) {
+					x += i * 31L ^ x;
+				}
+				sink = x;
+				done.incrementAndGet();
+			}
+		};
+		long submitted = 0;
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			for (int i = 0; i < 64; i++) {
+				while (submitted - done.get() >= WINDOW) {
+					Thread.yield();
+				}
+				pool.addToQueue(task);
+				submitted++;
+			}
+		}
+		while (done.get() < submitted) {
+			Thread.yield();
+		}
+		return submitted;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Thread-per-task pool on virtual threads
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ThreadPool that runs every task on a thread of its own instead of
+ * queueing it for a fixed set of workers, so tasks that block on sockets
+ * or storage do not limit how many run at once. The threads are virtual
+ * threads where the JVM has them (Java 21 and later), which makes one per
+ * request cheap; older JVMs fall back to a platform thread per task.
+ */
+public class VirtualThreadPool extends ThreadPool {
+	private static final ThreadFactory FACTORY = createFactory();
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+
+	public VirtualThreadPool() {
+		super(0);
+	}
+
+	/**
+	 * Starts r on a new thread right away
+	 */
+	@Override
+	public void addToQueue(final Runnable r) throws InterruptedException {
+		active.incrementAndGet();
+		FACTORY.newThread(new Runnable() {
+			public void run() {
+				try {
+					r.run();
+				} finally {
+					active.decrementAndGet();
+					completed.incrementAndGet();
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * @return the number of tasks running, one thread each
+	 */
+	@Override
+	public int getPoolSize() {
+		return active.get();
+	}
+
+	@Override
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * Tasks never queue here, so there is no queue depth or wait time to
+	 * report; only running and completed tasks are.
+	 */
+	@Override
+	public String toString() {
+		return String.format("virtual=%b active=%d completed=%d", isVirtual(), getActiveCount(),
+				getCompletedCount());
+	}
+
+	/**
+	 * @return whether tasks run on virtual threads rather than platform threads
+	 */
+	public static boolean isVirtual() {
+		return !(FACTORY instanceof PlatformThreadFactory);
+	}
+
+	// Thread.ofVirtual().factory(), looked up reflectively so that this compiles and runs before Java 21
+	private static ThreadFactory createFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return new PlatformThreadFactory();
+		}
+	}
+
+	private static class PlatformThreadFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Thread pool with per-worker queues and work stealing
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL PRASHANTH MOHAN BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A ThreadPool in which every worker has a deque of its own instead of all
+ * of them sharing one queue under one monitor. addToQueue hands tasks to
+ * the workers round-robin; a worker takes from the head of its own deque
+ * and, when that is empty, steals from the tail of the others'. Idle
+ * workers park, and only one is woken per task: the worker given the task,
+ * else its neighbour, else the worker that parked last, to steal it.
+ * 
+ * The queues are unbounded; the bounded pool's policies and wait-time
+ * metrics apply to the ThreadPool base class only.
+ */
+public class WorkStealingThreadPool extends ThreadPool {
+	private final StealingWorker[] workers;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicLong stolen = new AtomicLong();
+	// Parked workers, the most recently parked first
+	private final ConcurrentLinkedDeque<StealingWorker> parkedWorkers = new ConcurrentLinkedDeque<StealingWorker>();
+
+	/**
+	 * @param size How many threads in the thread pool.
+	 */
+	public WorkStealingThreadPool(int size) {
+		super(0);
+		workers = new StealingWorker[size];
+		for (int i = 0; i < size; i++) {
+			workers[i] = new StealingWorker(i);
+		}
+		for (int i = 0; i < size; i++) {
+			workers[i].start();
+		}
+	}
+
+	@Override
+	public void addToQueue(Runnable r) throws InterruptedException {
+		int i = (next.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+		StealingWorker worker = workers[i];
+		worker.tasks.addLast(r);
+		if (worker.parked) {
+			LockSupport.unpark(worker);
+		} else if (workers.length > 1) {
+			StealingWorker neighbour = workers[(i + 1) % workers.length];
+			if (neighbour.parked) {
+				LockSupport.unpark(neighbour);
+				return;
+			}
+			StealingWorker idle = parkedWorkers.pollFirst();
+			if (idle != null) {
+				LockSupport.unpark(idle);
+			}
+		}
+	}
+
+	// Takes a task from the tail of another worker's deque, starting after thief
+	private Runnable steal(StealingWorker thief) {
+		for (int k = 1; k < workers.length; k++) {
+			Runnable task = workers[(thief.index + k) % workers.length].tasks.pollLast();
+			if (task != null) {
+				stolen.incrementAndGet();
+				return task;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int getPoolSize() {
+		return workers.length;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		int depth = 0;
+		for (StealingWorker worker : workers) {
+			depth += worker.tasks.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the number of tasks run by a worker other than the one they were given to
+	 */
+	public long getStolenCount() {
+		return stolen.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("threads=%d active=%d queued=%d completed=%d stolen=%d",
+				getPoolSize(), getActiveCount(), getQueueDepth(), getCompletedCount(), getStolenCount());
+	}
+
+	private class StealingWorker extends Thread {
+		final int index;
+		final ConcurrentLinkedDeque<Runnable> tasks = new ConcurrentLinkedDeque<Runnable>();
+		volatile boolean parked = false;
+
+		StealingWorker(int index) {
+			this.index = index;
+		}
+
+		public void run() {
+			while (true) {
+				Runnable task = take();
+				if (task == null) {
+					// Announce parking, then look once more so a task added meanwhile is not missed
+					parked = true;
+					parkedWorkers.addFirst(this);
+					task = take();
+					if (task == null) {
+						LockSupport.park(this);
+					}
+					parked = false;
+					parkedWorkers.remove(this);
+					if (task == null) {
+						continue;
+					}
+				}
+				beforeRun();
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				} finally {
+					afterRun();
+				}
+			}
+		}
+
+		private Runnable take() {
+			Runnable task = tasks.pollFirst();
+			return (task != null) ? task : steal(this);
+		}
+	}
+}